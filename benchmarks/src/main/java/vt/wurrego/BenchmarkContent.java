@@ -0,0 +1,66 @@
+package vt.wurrego;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Shared fixtures for the benchmarks
+ * Created by wurrego on 6/4/17.
+ */
+class BenchmarkContent {
+
+    private static final String[] WORDS = { "REUTER", "grain", "wheat", "tonnes", "the", "said", "of", "and", "pct", "<BODY>", "</BODY>\n" };
+
+    /**
+     * createContentFile - writes a temporary text corpus of about size bytes
+     * @param size
+     * @return File
+     * @throws IOException
+     */
+    static File createContentFile(int size) throws IOException {
+        File file = File.createTempFile("packetsender-bench", ".sgm");
+        file.deleteOnExit();
+
+        Random random = new Random(1);
+        StringBuilder sb = new StringBuilder(size + 16);
+
+        while (sb.length() < size)
+            sb.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+
+        try (FileOutputStream os = new FileOutputStream(file)) {
+            os.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+        }
+
+        return file;
+    }
+
+    /**
+     * descriptor - content descriptor as it would be loaded from contentDescriptors.json
+     * @param contentFile
+     * @param udpPacket
+     * @param mtuSize
+     * @return ContentInfo.ContentDescriptors
+     */
+    static ContentInfo.ContentDescriptors descriptor(File contentFile, boolean udpPacket, int mtuSize) {
+        ContentInfo.ContentDescriptors cd = new ContentInfo().new ContentDescriptors();
+
+        cd.name = "BENCH";
+        cd.dest_ip = "127.0.0.1";
+        cd.dest_port = 1582;
+        cd.average_packets_per_second = 5;
+        cd.max_packets_per_second = 10;
+        cd.clock_hz = 10;
+        cd.udp_packet = udpPacket;
+        cd.packet_src_address = "178.24.52.1";
+        cd.packet_dst_address = "239.25.50.55";
+        cd.packet_src_port = (short) 6685;
+        cd.packet_dst_port = (short) 9985;
+        cd.packet_mtu_size_bytes = mtuSize;
+        cd.content_file_path = contentFile.getPath();
+
+        return cd;
+    }
+}
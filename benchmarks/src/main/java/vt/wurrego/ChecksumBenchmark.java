@@ -0,0 +1,51 @@
+package vt.wurrego;
+
+import org.openjdk.jmh.annotations.*;
+import vt.wurrego.utils.IPUtils;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Internet checksum throughput across payload sizes
+ * Created by wurrego on 6/4/17.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChecksumBenchmark {
+
+    @Param({ "20", "64", "512", "1472", "9000" })
+    int size;
+
+    byte[] data;
+    ByteBuffer directData;
+
+    @Setup
+    public void setup() {
+        data = new byte[size];
+        new Random(1).nextBytes(data);
+
+        directData = ByteBuffer.allocateDirect(size);
+        directData.put(data).flip();
+    }
+
+    @Benchmark
+    public short calculateChecksum() {
+        return IPUtils.IPHeaderChecksum.calculateChecksum(data);
+    }
+
+    @Benchmark
+    public long partialSum_array() {
+        return IPUtils.IPHeaderChecksum.partialSum(data, 0, size);
+    }
+
+    @Benchmark
+    public long partialSum_directBuffer() {
+        return IPUtils.IPHeaderChecksum.partialSum(directData, 0, size);
+    }
+}
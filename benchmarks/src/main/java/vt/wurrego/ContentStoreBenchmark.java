@@ -0,0 +1,52 @@
+package vt.wurrego;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Payload selection from a memory-mapped content file
+ * Created by wurrego on 6/4/17.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContentStoreBenchmark {
+
+    @Param({ "64", "500", "1472" })
+    int size;
+
+    ContentStore contentStore;
+    byte[] data;
+    ByteBuffer directData;
+
+    @Setup
+    public void setup() throws IOException {
+        File contentFile = BenchmarkContent.createContentFile(16 << 20);
+        contentStore = new ContentStore(contentFile.getPath());
+
+        data = new byte[size];
+        directData = ByteBuffer.allocateDirect(size);
+    }
+
+    @Benchmark
+    public byte[] read_array() {
+        long offset = ThreadLocalRandom.current().nextLong(contentStore.length() - size + 1);
+        contentStore.read(offset, data, 0, size);
+        return data;
+    }
+
+    @Benchmark
+    public ByteBuffer read_directBuffer() {
+        long offset = ThreadLocalRandom.current().nextLong(contentStore.length() - size + 1);
+        contentStore.read(offset, directData, 0, size);
+        return directData;
+    }
+}
@@ -0,0 +1,69 @@
+package vt.wurrego;
+
+import org.openjdk.jmh.annotations.*;
+import vt.wurrego.utils.HeaderTemplate;
+import vt.wurrego.utils.IPUtils;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * IPv4/UDP header encapsulation, precompiled template versus full checksum recalculation
+ * Created by wurrego on 6/4/17.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeaderBenchmark {
+
+    @Param({ "64", "500", "1472" })
+    int payloadSize;
+
+    byte[] sourceAddress = { (byte) 178, 24, 52, 1 };
+    byte[] destAddress = { (byte) 239, 25, 50, 55 };
+    HeaderTemplate headerTemplate;
+    byte[] packet;
+    ByteBuffer directPacket;
+    byte[] payload;
+    byte[] udpHeader;
+
+    @Setup
+    public void setup() {
+        headerTemplate = new HeaderTemplate(sourceAddress, destAddress, (short) 6685, (short) 9985);
+
+        payload = new byte[payloadSize];
+        new Random(1).nextBytes(payload);
+
+        packet = new byte[HeaderTemplate.HEADER_SIZE + payloadSize];
+        System.arraycopy(payload, 0, packet, HeaderTemplate.HEADER_SIZE, payloadSize);
+
+        directPacket = ByteBuffer.allocateDirect(packet.length);
+        directPacket.put(packet).clear();
+
+        udpHeader = new byte[IPUtils.UDP_HEADER_SIZE];
+    }
+
+    @Benchmark
+    public byte[] template_array() {
+        long payloadSum = IPUtils.IPHeaderChecksum.partialSum(packet, HeaderTemplate.HEADER_SIZE, payloadSize);
+        headerTemplate.write(packet, 0, payloadSize, payloadSum);
+        return packet;
+    }
+
+    @Benchmark
+    public ByteBuffer template_directBuffer() {
+        long payloadSum = IPUtils.IPHeaderChecksum.partialSum(directPacket, HeaderTemplate.HEADER_SIZE, payloadSize);
+        headerTemplate.write(directPacket, 0, payloadSize, payloadSum);
+        return directPacket;
+    }
+
+    @Benchmark
+    public short fullUDPChecksum() {
+        return IPUtils.IPHeaderChecksum.calculateUDPChecksum(sourceAddress, destAddress, HeaderTemplate.PROTOCOL_UDP,
+                (short) (IPUtils.UDP_HEADER_SIZE + payloadSize), udpHeader, payload);
+    }
+}
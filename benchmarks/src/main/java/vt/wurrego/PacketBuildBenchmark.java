@@ -0,0 +1,49 @@
+package vt.wurrego;
+
+import org.openjdk.jmh.annotations.*;
+import vt.wurrego.utils.HeaderTemplate;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end packet build cost, content selection plus encapsulation
+ * Created by wurrego on 6/4/17.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketBuildBenchmark {
+
+    @Param({ "500", "1472" })
+    int mtuSize;
+
+    @Param({ "true", "false" })
+    boolean udpPacket;
+
+    ContentSelector contentSelector;
+    ByteBuffer packet;
+
+    @Setup
+    public void setup() throws IOException {
+        File contentFile = BenchmarkContent.createContentFile(16 << 20);
+        contentSelector = new ContentSelector(BenchmarkContent.descriptor(contentFile, udpPacket, mtuSize), 0);
+
+        packet = ByteBuffer.allocateDirect(HeaderTemplate.HEADER_SIZE + mtuSize);
+    }
+
+    @Benchmark
+    public byte[] getContentPacket() {
+        return contentSelector.getContentPacket(mtuSize, false);
+    }
+
+    @Benchmark
+    public int fillContentPacket() {
+        return contentSelector.fillContentPacket(packet, mtuSize, false);
+    }
+}
@@ -0,0 +1,43 @@
+package vt.wurrego;
+
+import org.openjdk.jmh.annotations.*;
+import vt.wurrego.utils.CommonEnums;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Markov state sampling and on/off time statistics
+ * Created by wurrego on 5/7/17.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StateMachineBenchmark {
+
+    StateMachine stateMachine;
+
+    @Setup
+    public void setup() {
+        stateMachine = new StateMachine();
+    }
+
+    @Benchmark
+    public CommonEnums.StateStatus get_nextState() {
+        CommonEnums.StateStatus nextState = stateMachine.get_nextState();
+        stateMachine.set_State(nextState);
+        return nextState;
+    }
+
+    @Benchmark
+    public double get_onTime_iterations() {
+        return stateMachine.get_onTime(100);
+    }
+
+    @Benchmark
+    public double get_onTime_stationary() {
+        return stateMachine.get_onTime();
+    }
+}
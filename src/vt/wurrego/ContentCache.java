@@ -0,0 +1,101 @@
+package vt.wurrego;
+
+import vt.wurrego.utils.Logger;
+import vt.wurrego.utils.Metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Process-wide cache of mapped content files
+ *
+ * Flows naming the same file, by any path that resolves to the same canonical path, share a single read-only
+ * ContentStore instead of mapping it each. Every acquire() counts a reference, every release() drops one, and a
+ * corpus no flow references any more is evicted. Eviction only drops the cache entry, nothing is unmapped explicitly:
+ * the mapping is freed when its buffers are garbage collected, so a sender still finishing a packet never reads
+ * unmapped memory.
+ *
+ * Created by wurrego on 5/13/17.
+ */
+public class ContentCache {
+
+    /**
+     * class parameters
+     */
+    private static final String TAG = " [" + ContentCache.class.getSimpleName() + "] ";
+    private static final Map<String, Corpus> corpora = new HashMap<String, Corpus>();
+
+    /**
+     * acquire - shared store of a content file, mapped on first use
+     * @param contentFileName
+     * @return ContentStore
+     * @throws IOException
+     */
+    public static synchronized ContentStore acquire(String contentFileName) throws IOException {
+
+        String canonicalPath = new File(contentFileName).getCanonicalPath();
+        Corpus corpus = corpora.get(canonicalPath);
+
+        if (corpus == null) {
+            corpus = new Corpus(new ContentStore(canonicalPath));
+            corpora.put(canonicalPath, corpus);
+            Metrics.corpus(canonicalPath, corpus);
+        }
+
+        corpus.references++;
+        return corpus.store;
+    }
+
+    /**
+     * release - drops a reference taken by acquire(), evicting the corpus with the last one
+     * @param store - may be null
+     */
+    public static synchronized void release(ContentStore store) {
+
+        if (store == null)
+            return;
+
+        String canonicalPath = store.getContentFileName();
+        Corpus corpus = corpora.get(canonicalPath);
+
+        if (corpus == null || corpus.store != store)
+            return;
+
+        if (--corpus.references == 0) {
+            corpora.remove(canonicalPath);
+            Metrics.removeCorpus(canonicalPath);
+            Logger.log( TAG , "- Evicted " + canonicalPath );
+        }
+    }
+
+    /**
+     * Cached store and its reference count
+     */
+    private static class Corpus implements Metrics.Corpus {
+        final ContentStore store;
+        int references;
+
+        Corpus(ContentStore store) {
+            this.store = store;
+        }
+
+        @Override
+        public long getMappedBytes() {
+            return store.length();
+        }
+
+        @Override
+        public long getResidentBytes() {
+            return store.residentBytes();
+        }
+
+        @Override
+        public int getReferences() {
+            synchronized (ContentCache.class) {
+                return references;
+            }
+        }
+    }
+}
@@ -2,44 +2,87 @@ package vt.wurrego;
 
 import com.google.common.util.concurrent.RateLimiter;
 import vt.wurrego.utils.CommonEnums;
+import vt.wurrego.utils.DirectBufferPool;
+import vt.wurrego.utils.FlowMetrics;
+import vt.wurrego.utils.HeaderTemplate;
 import vt.wurrego.utils.Logger;
+import vt.wurrego.utils.Metrics;
+import vt.wurrego.utils.Threads;
 
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.text.DecimalFormat;
-import java.util.ArrayList;
+import java.util.SplittableRandom;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by wurrego on 5/8/17.
  */
-public class ContentGenerator extends Thread {
+public class ContentGenerator implements Runnable {
 
     /**
      * class parameters
      */
+    private static final int BUFFER_POOL_SIZE = 4;
+    private static final AtomicInteger generatorCount = new AtomicInteger();
     private StateMachine state;
-    private ArrayList<TxSocket> sockets_ThreadList;
-    private ArrayList<TxSocket> sockets_killedThreadList;
+    private TxSocket txSocket;
     private boolean debugLogging;
     private int debugLevel;
-    private boolean running;
+    private volatile boolean running;
     private String TAG;
+    private String name;
+
+    // execution, either on a (virtual) thread of its own or on the event-loop scheduler
+    private CommonEnums.ExecutionMode executionMode;
+    private Thread thread;
+    private FlowScheduler scheduler;
+    private ScheduledFuture<?> scheduledTick;
 
 
     // statistics
-    private int packetsSent;
+    private FlowMetrics metrics;
 
     // Content Selector
     private ContentSelector contentSelector;
 
-    // Content Descriptor
-    private ContentInfo.ContentDescriptors contentDescriptor;
+    // send buffers, or the ring of packets built ahead by the builder stage
+    private DirectBufferPool bufferPool;
+    private PacketBuilder packetBuilder;
+
+    // random stream of the sender, split off the flow's stream at construction
+    private SplittableRandom senderRandom;
+
+    // Content Descriptor, replaced when the flow is retuned
+    private volatile ContentInfo.ContentDescriptors contentDescriptor;
 
 
     public ContentGenerator(ContentInfo.ContentDescriptors cd, int debugLevel) {
+        this(cd, debugLevel, CommonEnums.ExecutionMode.THREADS, null);
+    }
+
+    public ContentGenerator(ContentInfo.ContentDescriptors cd, int debugLevel, CommonEnums.ExecutionMode executionMode, FlowScheduler scheduler) {
+        this(cd, debugLevel, executionMode, scheduler, new SplittableRandom());
+    }
+
+    /**
+     * ContentGenerator - constructor for a generator run in the provided execution mode
+     * @param cd
+     * @param debugLevel
+     * @param executionMode - thread per flow, virtual thread per flow or event-loop scheduler
+     * @param scheduler - required for the event-loop scheduler mode, else null
+     * @param random - random stream of the flow, split into the state machine, content selector and sender streams
+     */
+    public ContentGenerator(ContentInfo.ContentDescriptors cd, int debugLevel, CommonEnums.ExecutionMode executionMode, FlowScheduler scheduler, SplittableRandom random) {
 
         this.contentDescriptor = cd;
+        this.executionMode = executionMode;
+        this.scheduler = scheduler;
+        this.name = this.getClass().getSimpleName() + "-" + generatorCount.getAndIncrement();
 
         // debug parameters
-        TAG = " [" + this.getClass().getSimpleName() + " - " + this.getName() + " - " + contentDescriptor.name + "] ";
+        TAG = " [" + name + " - " + contentDescriptor.name + "] ";
         this.debugLevel = debugLevel;
         debugLogging = false;
 
@@ -47,27 +90,112 @@ public class ContentGenerator extends Thread {
             debugLogging = true;
 
         // init
-        state = new StateMachine();
-        sockets_ThreadList = new ArrayList<TxSocket>();
-        sockets_killedThreadList = new ArrayList<TxSocket>();
+        state = new StateMachine(random.split());
         running = true;
 
 
         // statistics
-        packetsSent = 0;
+        metrics = Metrics.flow(contentDescriptor.name);
 
         // content selector
-        contentSelector = new ContentSelector(contentDescriptor, debugLevel-1);
+        contentSelector = new ContentSelector(contentDescriptor, debugLevel-1, random.split());
+        senderRandom = random.split();
 
+        // send buffers
+        if (contentDescriptor.ring_size > 0) {
+            packetBuilder = new PacketBuilder(contentSelector, metrics, contentDescriptor, contentDescriptor.ring_size, executionMode);
+            metrics.setRingCapacity(packetBuilder.getCapacity());
+        } else if (contentDescriptor.tx_mode == CommonEnums.TxMode.CHANNEL || contentDescriptor.tx_mode == CommonEnums.TxMode.PCAP)
+            bufferPool = new DirectBufferPool(BUFFER_POOL_SIZE, HeaderTemplate.HEADER_SIZE + contentDescriptor.packet_mtu_size_bytes);
 
     }
 
-    @Override
-    public void interrupt() {
+    /**
+     * start - starts the generator and its paused sender in its execution mode
+     */
+    public void start() {
+
+        // one long-lived sender per flow, switched between profiles on state transitions
+        txSocket = new TxSocket(this, contentDescriptor, debugLevel-1, senderRandom);
+
+        // the builder stage always runs on a thread of its own, it only parks when the ring is full
+        if (packetBuilder != null)
+            packetBuilder.start(executionMode == CommonEnums.ExecutionMode.VIRTUAL);
+
+        if (executionMode == CommonEnums.ExecutionMode.SCHEDULER) {
+            txSocket.schedule(scheduler);
+            schedule();
+            return;
+        }
+
+        txSocket.start(executionMode == CommonEnums.ExecutionMode.VIRTUAL);
+
+        thread = Threads.newThread(this, name, executionMode == CommonEnums.ExecutionMode.VIRTUAL);
+        thread.start();
+    }
+
+    /**
+     * shutdown - stops the generator and its sender, interrupting any sleep in progress
+     */
+    public void shutdown() {
         if (debugLogging) {   Logger.log( TAG , "- Interrupted" ); }
 
         this.running = false;
 
+        if (scheduledTick != null)
+            scheduledTick.cancel(false);
+
+        if (thread != null)
+            thread.interrupt();
+
+        if (txSocket != null)
+            txSocket.shutdown();
+
+        if (packetBuilder != null)
+            packetBuilder.shutdown();
+
+        contentSelector.close();
+    }
+
+    /**
+     * awaitTermination - waits for the generator and sender threads to finish after shutdown()
+     * @param timeoutMillis - per thread
+     * @throws InterruptedException
+     */
+    public void awaitTermination(long timeoutMillis) throws InterruptedException {
+
+        if (thread != null)
+            thread.join(timeoutMillis);
+
+        if (txSocket != null)
+            txSocket.awaitTermination(timeoutMillis);
+
+        if (packetBuilder != null)
+            packetBuilder.awaitTermination(timeoutMillis);
+    }
+
+    /**
+     * schedule - starts the generator on the scheduler, ticking at clock_hz after the start delay
+     */
+    private void schedule() {
+
+        long periodNanos = (long) (1e9 / contentDescriptor.clock_hz);
+        long startDelayNanos = contentDescriptor.start_delay_milliseconds * 1000000L;
+
+        scheduledTick = scheduler.scheduleAtRate(new Runnable() {
+            private boolean started = false;
+
+            @Override
+            public void run() {
+                if (!started) {
+                    logStatistics();
+                    started = true;
+                }
+
+                if (running)
+                    tick();
+            }
+        }, startDelayNanos, periodNanos);
     }
 
     @Override
@@ -77,108 +205,140 @@ public class ContentGenerator extends Thread {
         try {
             Thread.sleep(contentDescriptor.start_delay_milliseconds);
         } catch (InterruptedException e) {
-            e.printStackTrace();
+            // shut down while waiting to start
+            Thread.currentThread().interrupt();
+            return;
         }
 
-        // State Machine
-        DecimalFormat df = new DecimalFormat("#.00");
-        Logger.log( TAG ,"On Time: " + df.format(state.get_onTime(100)) + " / Off Time: " + df.format(state.get_offTime(100)) );
+        logStatistics();
 
         // rateLimiter will uniformely distribute the packet sends per second
         RateLimiter rateLimiter = RateLimiter.create(contentDescriptor.clock_hz);
 
-        while (running) {
+        while (running && !Thread.currentThread().isInterrupted()) {
 
             // acquire rate token
             rateLimiter.acquire();
 
-            if (debugLogging) {  Logger.log( TAG , state.get_State().toString()); }
-            CommonEnums.StateStatus nextState = state.get_nextState();
-            updateState(nextState);
+            if (running)
+                tick();
+        }
+
+    }
+
+    /**
+     * tick - advances the state machine by one step
+     */
+    public void tick() {
+
+        if (debugLogging) {  Logger.log( TAG , state.get_State().toString()); }
+        CommonEnums.StateStatus nextState = state.get_nextState();
+        updateState(nextState);
+    }
+
+    /**
+     * logStatistics - logs the state machine on/off time
+     */
+    private void logStatistics() {
+
+        // State Machine
+        DecimalFormat df = new DecimalFormat("#.00");
+        Logger.log( TAG ,"On Time: " + df.format(state.get_onTime()) + " / Off Time: " + df.format(state.get_offTime()) );
+    }
+
+    /**
+     * retune - switches the running flow to a descriptor that only differs in its rates and destinations, the sender
+     * picks the new profile and destinations up from its next burst without waiting on the swap
+     * @param cd
+     */
+    public void retune(ContentInfo.ContentDescriptors cd) {
+
+        // destinations are resolved before taking the lock, a slow name lookup never holds up state transitions,
+        // txSocket was set by start() on the calling thread
+        InetSocketAddress[] destinations = (txSocket != null) ? txSocket.resolveDestinations(cd) : null;
+
+        synchronized (this) {
+            this.contentDescriptor = cd;
+
+            if (txSocket == null)
+                return;
 
+            txSocket.retarget(destinations);
 
+            // a sending state switches to the new rates right away, the others pick them up on their next transition
+            CommonEnums.StateStatus current = state.get_State();
+            if (current == CommonEnums.StateStatus.LOW || current == CommonEnums.StateStatus.HIGH)
+                txSocket.setProfile(RateProfile.forState(cd, current));
         }
 
+        Logger.log( TAG , "- Retuned to " + cd.max_packets_per_second + " packets per second" );
     }
 
     /**
      * updateState - change operating state and system behavior
      * @param nextState
      */
-    public void updateState(CommonEnums.StateStatus nextState) {
+    public synchronized void updateState(CommonEnums.StateStatus nextState) {
 
         // do transition from current state to next state, else do nothing
         if (state.get_State() != nextState)
         {
-            // create reference to txSocket thread
-            TxSocket txSocket = null;
-
             switch(nextState) {
                 case OFF:
-                    for (TxSocket aThread : sockets_ThreadList)
-                    {
-                        if (aThread != null) { aThread.interrupt(); sockets_killedThreadList.add(aThread); }
-                    }
+                    txSocket.setProfile(null);
                     break;
 
                 case IDLE:
-                    for (TxSocket aThread : sockets_ThreadList)
-                    {
-                        if (aThread != null) { aThread.interrupt(); sockets_killedThreadList.add(aThread); }
-                    }
+                    txSocket.setProfile(null);
                     break;
 
                 case LOW:
-                    for (TxSocket aThread : sockets_ThreadList)
-                    {
-                        if (aThread != null) { aThread.interrupt(); sockets_killedThreadList.add(aThread); }
-                    }
-                    txSocket = new TxSocket(this, contentDescriptor, debugLevel-1);
-                    txSocket.start();
-                    sockets_ThreadList.add(txSocket);
+                    txSocket.setProfile(RateProfile.forState(contentDescriptor, nextState));
                     break;
 
                 case HIGH:
-                    for (TxSocket aThread : sockets_ThreadList)
-                    {
-                        if (aThread != null) { aThread.interrupt(); sockets_killedThreadList.add(aThread); }
-                    }
-                    txSocket = new TxSocket(this, contentDescriptor, debugLevel-1);
-                    txSocket.start();
-                    sockets_ThreadList.add(txSocket);
+                    txSocket.setProfile(RateProfile.forState(contentDescriptor, nextState));
                     break;
 
 
                 default:
-                    for (TxSocket aThread : sockets_ThreadList)
-                    {
-                        if (aThread != null) { aThread.interrupt(); sockets_killedThreadList.add(aThread); }
-                    }
+                    txSocket.setProfile(null);
                     Logger.log( TAG ,  "System in Unknown State." );
 
             }
 
             state.set_State(nextState);
-
-            // clean up thread list
-            for (TxSocket aThread : sockets_killedThreadList)
-                sockets_ThreadList.remove(aThread);
-
-            sockets_killedThreadList.clear();
+            metrics.enterState(nextState);
         }
     }
 
-    public int get_PacketsSent_count() {
-        return packetsSent;
+    public long get_PacketsSent_count() {
+        return metrics.getPacketsSent();
     }
 
-    public void increment_PacketsSent() {
-        this.packetsSent =  this.packetsSent+1;
+    public FlowMetrics getMetrics() {
+        return metrics;
     }
 
     public String getUserProvidedName() {
         return contentDescriptor.name;
     }
 
+    public ContentInfo.ContentDescriptors getContentDescriptor() {
+        return contentDescriptor;
+    }
+
     public byte[] offerPacket(int mtuSize, boolean varyPacketSize) { return contentSelector.getContentPacket(mtuSize, varyPacketSize); }
+
+    public int offerPacket(ByteBuffer packet, int mtuSize, boolean varyPacketSize) { return contentSelector.fillContentPacket(packet, mtuSize, varyPacketSize); }
+
+    public boolean hasSequenceHeader() { return contentSelector.hasSequenceHeader(); }
+
+    public boolean isReplayTimed() { return contentSelector.isReplayTimed(); }
+
+    public DirectBufferPool getBufferPool() { return bufferPool; }
+
+    public PacketBuilder getPacketBuilder() { return packetBuilder; }
+
+    public long offerReplayDelayNanos() { return (packetBuilder != null) ? packetBuilder.takeReplayDelayNanos() : contentSelector.takeReplayDelayNanos(); }
 }
@@ -1,5 +1,12 @@
 package vt.wurrego;
 
+import com.google.gson.Gson;
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonSyntaxException;
+import vt.wurrego.utils.CommonEnums;
+import vt.wurrego.utils.Logger;
+
+import java.io.*;
 import java.util.List;
 
 /**
@@ -7,13 +14,26 @@ import java.util.List;
  */
 class ContentInfo {
 
+    private final static String TAG = " [" + ContentInfo.class.getSimpleName() + "] ";
+
     int debug_level;
+    CommonEnums.ExecutionMode execution_mode;
+    int metrics_port;
+    int latency_interval_seconds;
+    Long seed;
     List<ContentDescriptors> contentDescriptors;
 
     class ContentDescriptors {
         String name;
         String dest_ip;
         int dest_port;
+        List<Destination> destinations;
+        int multicast_ttl;
+        String multicast_interface;
+        int socket_send_buffer_bytes;
+        int traffic_class;
+        CommonEnums.BackpressurePolicy backpressure_policy;
+        int send_stall_micros;
         int average_packets_per_second;
         int max_packets_per_second;
         boolean variable_rate;
@@ -24,9 +44,69 @@ class ContentInfo {
         String packet_dst_address;
         short packet_src_port;
         short packet_dst_port;
+        CommonEnums.ContentSourceType content_source;
+        String content_pattern;
         String content_file_path;
+        String content_record_delimiter;
+        String replay_file_path;
+        CommonEnums.ReplayMode replay_mode;
         int packet_mtu_size_bytes;
         boolean packet_variable_size;
+        boolean sequence_header;
+        int flow_id;
+        CommonEnums.TxMode tx_mode;
+        int burst_size;
+        int pacer_spin_micros;
+        int ring_size;
+        String pcap_file_path;
+        boolean pcap_unpaced;
     }
-}
 
+    static class Destination {
+        String dest_ip;
+        int dest_port;
+    }
+
+    /**
+     * load - get content descriptors for json
+     * @param filename
+     * @return ContentInfo - null when the file could not be loaded
+     */
+    static ContentInfo load(String filename)
+    {
+        ContentInfo contentInfo = null;
+
+        File file = new File(filename);
+        Gson gson = new Gson();
+
+        BufferedReader br = null;
+        try {
+            if (file.exists()) {
+                br = new BufferedReader(new InputStreamReader(new FileInputStream(filename)));
+                contentInfo = gson.fromJson(br, ContentInfo.class);
+            } else {
+                Logger.log( TAG, "ERROR loading Content Descriptors - File Not Found.");
+                return null;
+            }
+        } catch (FileNotFoundException e) {
+            Logger.log( TAG, "ERROR loading Content Descriptors - File Not Found.");
+            return null;
+        } catch (JsonIOException e) {
+            Logger.log( TAG, "ERROR loading Content Descriptors - JSON IO Exception.\n" + e);
+            return null;
+        } catch (JsonSyntaxException e) {
+            Logger.log( TAG, "ERROR loading Content Descriptors - JSON Syntax Exception.\n" + e);
+            return null;
+        } finally {
+            try {
+                if (br != null)
+                    br.close();
+            } catch (IOException e) {
+                Logger.log( TAG, "ERROR closing Content Descriptor File.");
+                return null;
+            }
+        }
+
+        return contentInfo;
+    }
+}
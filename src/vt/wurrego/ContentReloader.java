@@ -0,0 +1,283 @@
+package vt.wurrego;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import vt.wurrego.utils.CommonEnums;
+import vt.wurrego.utils.Logger;
+import vt.wurrego.utils.Metrics;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.SplittableRandom;
+
+/**
+ * Hot reload of the content descriptors
+ *
+ * Owns the running ContentGenerators by descriptor name and watches the descriptor file. On every change the new
+ * descriptor list is diffed against the running flows: flows no longer listed are stopped, new ones are started,
+ * flows that only changed their rates or destinations are retuned in place and flows with any other change are
+ * restarted. Unchanged flows keep running untouched. A retune swaps the flow's immutable profile and destinations,
+ * so its sender never waits on a reload.
+ *
+ * Created by wurrego on 5/13/17.
+ */
+public class ContentReloader implements Runnable {
+
+    /**
+     * class parameters
+     */
+    private static final long SETTLE_MILLISECONDS = 250;
+    private static final long SHUTDOWN_TIMEOUT_MILLISECONDS = 1000;
+
+    // descriptor fields a running flow can switch to without a restart
+    private static final String[] RETUNABLE_FIELDS = {
+            "max_packets_per_second", "average_packets_per_second", "variable_rate", "burst_size",
+            "dest_ip", "dest_port", "destinations"
+    };
+
+    private final Path file;
+    private final CommonEnums.ExecutionMode executionMode;
+    private final FlowScheduler scheduler;
+    private final SplittableRandom seeds;
+    private final Map<String, ContentGenerator> contentGenerators = new LinkedHashMap<String, ContentGenerator>();
+    private final Gson gson = new Gson();
+    private final String TAG;
+
+    private ContentInfo contentInfo;
+    private WatchService watchService;
+    private Thread thread;
+    private boolean running;
+
+    /**
+     * ContentReloader - creates the reloader of a descriptor file, no flow runs before the first apply()
+     * @param filename - descriptor file
+     * @param executionMode - execution mode of every flow, fixed for the life of the process
+     * @param scheduler - required for the event-loop scheduler mode, else null
+     * @param seeds - master random stream, every started flow splits its stream off it
+     */
+    public ContentReloader(String filename, CommonEnums.ExecutionMode executionMode, FlowScheduler scheduler, SplittableRandom seeds) {
+
+        this.file = Paths.get(filename).toAbsolutePath();
+        this.executionMode = executionMode;
+        this.scheduler = scheduler;
+        this.seeds = seeds;
+        this.running = true;
+
+        // debug parameters
+        TAG = " [" + this.getClass().getSimpleName() + "] ";
+    }
+
+    /**
+     * start - watches the descriptor file on a thread of its own
+     */
+    public void start() {
+
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            Logger.log( Logger.Level.ERROR, TAG , "- Error watching " + file + ", hot reload disabled.\n" + e );
+            return;
+        }
+
+        thread = new Thread(this, this.getClass().getSimpleName());
+        thread.setDaemon(true);
+        thread.start();
+
+        Logger.log( TAG , "- Watching " + file );
+    }
+
+    @Override
+    public void run() {
+
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                boolean changed = pollChanged(key);
+
+                // editors write in several steps, wait for the file to settle and fold the events that follow
+                while (changed) {
+                    Thread.sleep(SETTLE_MILLISECONDS);
+
+                    key = watchService.poll();
+                    if (key == null)
+                        break;
+
+                    pollChanged(key);
+                }
+
+                if (changed)
+                    reload();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // shut down
+        }
+    }
+
+    /**
+     * pollChanged - drains the events of a key
+     * @param key
+     * @return boolean - true when one of the events is about the descriptor file
+     */
+    private boolean pollChanged(WatchKey key) {
+
+        boolean changed = false;
+
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || file.getFileName().equals(event.context()))
+                changed = true;
+        }
+
+        key.reset();
+        return changed;
+    }
+
+    /**
+     * reload - loads the descriptor file and applies it, a file that does not load leaves every flow running as is
+     */
+    private void reload() {
+
+        ContentInfo next = ContentInfo.load(file.toString());
+
+        if (next == null || next.contentDescriptors == null) {
+            Logger.log( Logger.Level.WARN, TAG , "- Keeping the running flows, " + file.getFileName() + " did not load" );
+            return;
+        }
+
+        Logger.log( TAG , "- Reloading " + file.getFileName() );
+        apply(next);
+    }
+
+    /**
+     * apply - makes the running flows match the descriptors, the first call starts every flow
+     * @param next
+     */
+    public synchronized void apply(ContentInfo next) {
+
+        if (!running)
+            return;
+
+        ContentInfo previous = contentInfo;
+        contentInfo = next;
+
+        if (previous != null) {
+            // only the logging level of the top-level settings applies to a running process
+            Logger.setLevel((next.debug_level > 0) ? Logger.Level.DEBUG : Logger.Level.INFO);
+
+            if (next.execution_mode != previous.execution_mode || next.metrics_port != previous.metrics_port
+                    || next.latency_interval_seconds != previous.latency_interval_seconds || !Objects.equals(next.seed, previous.seed))
+                Logger.log( Logger.Level.WARN, TAG , "- execution_mode, metrics_port, latency_interval_seconds and seed changes apply after a restart" );
+        }
+
+        // descriptors by name, the first of a name wins, every descriptor takes its random stream in list order
+        Map<String, ContentInfo.ContentDescriptors> descriptors = new LinkedHashMap<String, ContentInfo.ContentDescriptors>();
+        Map<String, SplittableRandom> randoms = new LinkedHashMap<String, SplittableRandom>();
+
+        for (ContentInfo.ContentDescriptors cd : next.contentDescriptors) {
+            SplittableRandom random = seeds.split();
+
+            if (descriptors.containsKey(cd.name)) {
+                Logger.log( Logger.Level.WARN, TAG , "- Skipping duplicate flow " + cd.name );
+                continue;
+            }
+
+            descriptors.put(cd.name, cd);
+            randoms.put(cd.name, random);
+        }
+
+        // flows no longer listed
+        Iterator<Map.Entry<String, ContentGenerator>> iterator = contentGenerators.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, ContentGenerator> entry = iterator.next();
+
+            if (!descriptors.containsKey(entry.getKey())) {
+                Logger.log( TAG , "- Removing flow " + entry.getKey() );
+                stop(entry.getValue());
+                Metrics.remove(entry.getKey());
+                iterator.remove();
+            }
+        }
+
+        // new, changed and unchanged flows
+        for (ContentInfo.ContentDescriptors cd : descriptors.values()) {
+            ContentGenerator cg = contentGenerators.get(cd.name);
+
+            if (cg == null) {
+                if (previous != null)
+                    Logger.log( TAG , "- Adding flow " + cd.name );
+
+                contentGenerators.put(cd.name, start(cd, randoms.get(cd.name)));
+                continue;
+            }
+
+            JsonObject current = gson.toJsonTree(cg.getContentDescriptor()).getAsJsonObject();
+            JsonObject wanted = gson.toJsonTree(cd).getAsJsonObject();
+
+            if (current.equals(wanted))
+                continue;
+
+            for (String field : RETUNABLE_FIELDS) {
+                current.remove(field);
+                wanted.remove(field);
+            }
+
+            if (current.equals(wanted)) {
+                cg.retune(cd);
+            } else {
+                Logger.log( TAG , "- Restarting flow " + cd.name );
+                stop(cg);
+                contentGenerators.put(cd.name, start(cd, randoms.get(cd.name)));
+            }
+        }
+    }
+
+    /**
+     * shutdown - stops watching, later changes to the file are ignored
+     * @return List - the flows running at shutdown, for the caller to stop
+     */
+    public synchronized List<ContentGenerator> shutdown() {
+
+        running = false;
+
+        try {
+            if (watchService != null)
+                watchService.close();
+        } catch (IOException e) {
+            Logger.log( Logger.Level.ERROR, TAG , "- Error closing watch service.\n" + e );
+        }
+
+        if (thread != null)
+            thread.interrupt();
+
+        return new ArrayList<ContentGenerator>(contentGenerators.values());
+    }
+
+    private ContentGenerator start(ContentInfo.ContentDescriptors cd, SplittableRandom random) {
+        ContentGenerator cg = new ContentGenerator(cd, contentInfo.debug_level, executionMode, scheduler, random);
+        cg.start();
+        return cg;
+    }
+
+    private void stop(ContentGenerator cg) {
+        cg.shutdown();
+
+        try {
+            cg.awaitTermination(SHUTDOWN_TIMEOUT_MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
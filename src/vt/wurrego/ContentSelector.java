@@ -1,16 +1,18 @@
 package vt.wurrego;
 
+import vt.wurrego.utils.CommonEnums;
+import vt.wurrego.utils.HeaderTemplate;
 import vt.wurrego.utils.IPUtils;
 import vt.wurrego.utils.Logger;
+import vt.wurrego.utils.SequenceHeader;
 
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.util.Random;
+import java.util.Arrays;
+import java.util.SplittableRandom;
 
 /**
  * Class for selecting content
@@ -23,12 +25,24 @@ public class ContentSelector {
     private boolean debugLogging;
     private int debugLevel;
     private String TAG;
+    private final Logger.RateLimit readLogLimit = new Logger.RateLimit(10);
 
     private String sourceIPAddr;
     private String destIPAddr;
     private short sourcePort;
     private short destPort;
-    private String contentFileName;
+    private HeaderTemplate headerTemplate;
+    private SplittableRandom random;
+    private ContentSource contentSource;
+    private boolean closed;
+
+    // sequence header leading every payload, stamped by the sender
+    private boolean sequenceHeader;
+    private int flowId;
+    private int runId;
+
+    // capture replay, replaces the content source when set
+    private ReplayContentSource replaySource;
 
     // Content Descriptor
     private ContentInfo.ContentDescriptors contentDescriptor;
@@ -38,7 +52,18 @@ public class ContentSelector {
      * @param cd
      */
     public ContentSelector(ContentInfo.ContentDescriptors cd, int debugLevel) {
+        this(cd, debugLevel, new SplittableRandom());
+    }
+
+    /**
+     * ContentSelector - constructor for selecting content with sizes and offsets drawn from random
+     * @param cd
+     * @param debugLevel
+     * @param random - not shared with other threads, the selector is only used by its flow's sender
+     */
+    public ContentSelector(ContentInfo.ContentDescriptors cd, int debugLevel, SplittableRandom random) {
 
+        this.random = random;
         this.hasUDPHeader = cd.udp_packet;
         this.userProvidedName = cd.name;
 
@@ -60,234 +85,318 @@ public class ContentSelector {
         this.sourcePort = cd.packet_src_port;
         this.destPort = cd.packet_dst_port;
 
-        // content file
-        this.contentFileName = cd.content_file_path;
+        // header template
+        if (hasUDPHeader)
+            this.headerTemplate = compileHeaderTemplate();
+
+        // sequence header, the smallest payload still has to hold it
+        if (cd.sequence_header) {
+            if (cd.packet_mtu_size_bytes < SequenceHeader.SIZE) {
+                Logger.log( Logger.Level.WARN, TAG , "- packet_mtu_size_bytes below " + SequenceHeader.SIZE + ", sequence header disabled" );
+            } else {
+                sequenceHeader = true;
+                flowId = SequenceHeader.flowId(cd.flow_id, userProvidedName);
+
+                // drawn apart from the seeded streams, which stay reproducible
+                runId = new SplittableRandom().nextInt();
+                Logger.log( TAG , "- Sequence header flow id " + String.format("0x%08x", flowId) );
+            }
+        }
+
+        // capture to replay, else the descriptor's content source
+        if (cd.replay_file_path != null)
+            contentSource = replaySource = openReplaySource(cd.replay_file_path, cd.replay_mode);
+        else
+            contentSource = openContentSource(cd);
+
+        // content that could not be opened is sent as zeros
+        if (contentSource == null)
+            contentSource = new PatternContentSource(new byte[1]);
+
+        if (debugLogging) {   Logger.log( TAG , "- Content from " + contentSource.getClass().getSimpleName() ); }
     }
 
     /**
-     * headerEncapsulator - generates a IPV4/UDP packet with provided data as datagram
-     * @return byte[]
+     * close - releases the shared content, the selector keeps serving from it until the flow is gone
      */
-    private byte[] headerEncapsulator(byte[] data) {
+    public synchronized void close() {
+
+        if (closed)
+            return;
 
-        // Create the IP header byte buffer
-        ByteBuffer ipHeaderBuffer = ByteBuffer.allocateDirect(IPUtils.IP_HEADER_SIZE);
+        closed = true;
+        contentSource.close();
+    }
 
-        // Create the UDP header byte buffer
-        ByteBuffer udpHeaderBuffer = ByteBuffer.allocateDirect(IPUtils.UDP_HEADER_SIZE);
+    /**
+     * openContentSource - opens the descriptor's content source, the content file when none is set
+     * @param cd
+     * @return ContentSource - null when the content file could not be opened
+     */
+    private ContentSource openContentSource(ContentInfo.ContentDescriptors cd) {
 
-        /** Standard IPV4 Header 20 bytes **/
-            // version (4 bits)                 -- 0x04
-            // IHL (4 bits)                     -- 0x05
-            ipHeaderBuffer.put((byte)0x45);
+        CommonEnums.ContentSourceType type = (cd.content_source != null) ? cd.content_source : CommonEnums.ContentSourceType.FILE;
 
-            // DSCP (6 bits)                    -- 0
-            // ECN (2 bits)
-            ipHeaderBuffer.put((byte)0x00);
+        switch (type) {
+            case RANDOM:
+                return new RandomContentSource(random);
 
-            // Total Length (2 bytes)
-            short totalLength = (short) (IPUtils.IP_HEADER_SIZE + IPUtils.UDP_HEADER_SIZE + (data.length));
-            ipHeaderBuffer.putShort(totalLength);
+            case PATTERN:
+                String pattern = (cd.content_pattern != null && !cd.content_pattern.isEmpty()) ? cd.content_pattern : userProvidedName;
+                return new PatternContentSource(pattern.getBytes(StandardCharsets.UTF_8));
 
-            // Identification (2 bytes)         -- 0
-            ipHeaderBuffer.putShort((short)0);
+            case COUNTER:
+                return new CounterContentSource();
 
-            // Flags (3 bits)
-            // Fragment Offset (13 bits)        -- 0
-            ipHeaderBuffer.putShort((short)0);
+            case PRBS7:
+                return new PrbsContentSource(7);
 
-            // TTL (1 byte)                     -- d'256
-            ipHeaderBuffer.put((byte)0xFF);
+            case PRBS15:
+                return new PrbsContentSource(15);
 
-            // Protocol (1 byte)                - d'17 [UDP]
-            ipHeaderBuffer.put((byte)0x11);
+            case PRBS23:
+                return new PrbsContentSource(23);
 
-            // Header Checksum (2 bytes)        - placeholder
-            int ipHeaderChkSumPos = ipHeaderBuffer.position();
-            ipHeaderBuffer.putShort((short)0);
+            case PRBS31:
+                return new PrbsContentSource(31);
 
-            // Source IP Address (4 bytes)      - set via input
-            InetAddress sourceIP = null;
-            byte[] sourceAddress_bytes = null;
-            try {
-                sourceIP = InetAddress.getByName(sourceIPAddr);
-                sourceAddress_bytes = sourceIP.getAddress();
-                ipHeaderBuffer.put(sourceAddress_bytes);
-            } catch (UnknownHostException e) {
-                Logger.log( TAG , "- Error Unknown Source Address." );
-            }
+            default:
+                return openFileSource(cd);
+        }
+    }
 
-            // Destination IP Address (4 bytes) - set via input
-            InetAddress destIP = null;
-            byte[] destAddress_bytes = null;
+    /**
+     * openFileSource - maps the content file, indexing its records when a delimiter is set
+     * @param cd
+     * @return ContentSource - null when the file could not be mapped
+     */
+    private ContentSource openFileSource(ContentInfo.ContentDescriptors cd) {
+
+        ContentStore contentStore;
+
+        try {
+            contentStore = ContentCache.acquire(cd.content_file_path);
+        } catch (IOException e) {
+            Logger.log( TAG , "- Error Content File could not be mapped.\n" + e );
+            return null;
+        }
+
+        // payloads start at record boundaries, else at any byte
+        RecordIndex recordIndex = null;
+        if (cd.content_record_delimiter != null) {
             try {
-                destIP = InetAddress.getByName(destIPAddr);
-                destAddress_bytes = destIP.getAddress();
-                ipHeaderBuffer.put(destAddress_bytes);
-            } catch (UnknownHostException e) {
-                Logger.log( TAG , "- Error Unknown Destination Address." );
+                recordIndex = new RecordIndex(contentStore, cd.content_record_delimiter);
+            } catch (IOException e) {
+                Logger.log( TAG , "- Error Content File could not be indexed, payloads start at any byte.\n" + e );
             }
+        }
 
-            // calculate IP Header checksum
-            ipHeaderBuffer.rewind();
-            byte[] ipHeaderData = new byte[ipHeaderBuffer.remaining()];
-            ipHeaderBuffer.get(ipHeaderData);
-            short ipChkSum = IPUtils.IPHeaderChecksum.calculateChecksum(ipHeaderData);
+        return new FileContentSource(contentStore, recordIndex, random);
+    }
 
-            // add checksum to buffer
-            ipHeaderBuffer.putShort(ipHeaderChkSumPos, ipChkSum);
+    /**
+     * openReplaySource - maps and indexes the capture to replay
+     * @param replayFileName
+     * @param mode - in order when null
+     * @return ReplayContentSource - null when the capture holds nothing to replay
+     */
+    private ReplayContentSource openReplaySource(String replayFileName, CommonEnums.ReplayMode mode) {
 
-            // copy to byte []
-            ipHeaderBuffer.rewind();
-            ipHeaderBuffer.get(ipHeaderData);
+        try {
+            ReplayStore store = new ReplayStore(replayFileName);
 
-        /** Standard UDP Header 8 bytes **/
+            if (store.size() == 0) {
+                Logger.log( TAG , "- Error Replay File holds no UDP or TCP payloads." );
+                store.close();
+                return null;
+            }
 
-            // Source Port (2 bytes)
-            udpHeaderBuffer.putShort(sourcePort);
+            return new ReplayContentSource(store, mode, random);
+        } catch (IOException e) {
+            Logger.log( TAG , "- Error Replay File could not be indexed.\n" + e );
+            return null;
+        }
+    }
 
-            // Destination Port (2 bytes)
-            udpHeaderBuffer.putShort(destPort);
+    /**
+     * headerEncapsulator - writes the IPV4/UDP header in front of the datagram already placed at packet[HEADER_SIZE]
+     * @param packet
+     * @param dataLength
+     */
+    private void headerEncapsulator(byte[] packet, int dataLength) {
 
-            // Length (2 bytes)
-            short udpLength = (short) (IPUtils.UDP_HEADER_SIZE + (data.length));
-            udpHeaderBuffer.putShort(udpLength);
+        long dataSum = IPUtils.IPHeaderChecksum.partialSum(packet, HeaderTemplate.HEADER_SIZE, dataLength);
 
-            // Checksum (2 bytes)
-            int udpChkSumPos = udpHeaderBuffer.position();
-            udpHeaderBuffer.putShort((short)0); // placeholder
+        headerTemplate.write(packet, 0, dataLength, dataSum);
+    }
 
-            // calclate UDP checksum
-            udpHeaderBuffer.rewind();
-            byte[] udpHeaderData = new byte[udpHeaderBuffer.remaining()];
-            udpHeaderBuffer.get(udpHeaderData);
-            short udpChkSum = IPUtils.IPHeaderChecksum.calculateUDPChecksum(sourceAddress_bytes, destAddress_bytes, (byte)0x11, udpLength, udpHeaderData, data);
+    /**
+     * compileHeaderTemplate - resolves the header addresses once and builds the descriptor's header template
+     * @return HeaderTemplate
+     */
+    private HeaderTemplate compileHeaderTemplate() {
 
-            // add checksum to buffer
-            udpHeaderBuffer.putShort(udpChkSumPos, udpChkSum);
+        // Source IP Address (4 bytes)      - set via input
+        byte[] sourceAddress_bytes = new byte[4];
+        try {
+            sourceAddress_bytes = InetAddress.getByName(sourceIPAddr).getAddress();
+        } catch (UnknownHostException e) {
+            Logger.log( TAG , "- Error Unknown Source Address." );
+        }
 
-            // copy to byte []
-            udpHeaderBuffer.rewind();
-            udpHeaderBuffer.get(udpHeaderData);
+        // Destination IP Address (4 bytes) - set via input
+        byte[] destAddress_bytes = new byte[4];
+        try {
+            destAddress_bytes = InetAddress.getByName(destIPAddr).getAddress();
+        } catch (UnknownHostException e) {
+            Logger.log( TAG , "- Error Unknown Destination Address." );
+        }
 
-        /** Encapsulate **/
-        byte[] packet = new byte[ipHeaderData.length + udpHeaderData.length + data.length];
+        return new HeaderTemplate(sourceAddress_bytes, destAddress_bytes, sourcePort, destPort);
+    }
 
-        System.arraycopy(ipHeaderData,0,packet,0         ,ipHeaderData.length);
-        System.arraycopy(udpHeaderData,0,packet,ipHeaderData.length,udpHeaderData.length);
-        System.arraycopy(data,0,packet,udpHeaderData.length,data.length);
+    /**
+     * takeReplayDelayNanos - capture time between the first packet generated since the previous call and the packet
+     * following the last one, the time to wait before the next burst when replaying with the original timing
+     * @return long - -1 when not replaying with the original timing
+     */
+    public long takeReplayDelayNanos() {
+        return (replaySource != null) ? replaySource.takeReplayDelayNanos() : -1;
+    }
 
-        return packet;
+    /**
+     * isReplayTimed - packets are spaced by the capture's timestamps instead of the configured rate
+     * @return boolean
+     */
+    public boolean isReplayTimed() {
+        return replaySource != null && replaySource.isTimed();
+    }
 
+    /**
+     * hasSequenceHeader - payloads lead with a sequence header for the sender to stamp
+     * @return boolean
+     */
+    public boolean hasSequenceHeader() {
+        return sequenceHeader;
     }
 
     /**
-     * dataGenerator_fromFile - generates content from user-provided file
-     * @return byte[]
+     * payloadSize - size of the next payload, at least the sequence header when there is one
+     * @param mtuSize
+     * @param varyPacketSize
+     * @return int
      */
-    private byte[] dataGenerator_fromFile(int size) {
+    private int payloadSize(int mtuSize, boolean varyPacketSize) {
 
-        // data buffer
-        byte[] data = new byte[size];
+        int packetSize = mtuSize;
 
-        try {
-            RandomAccessFile file = new RandomAccessFile(contentFileName,"r");
+        // replayed packets keep their captured size
+        if (varyPacketSize && replaySource == null)
+            packetSize = random.nextInt(mtuSize) + 1;
 
-            // select random position in file to read content of length "size"
-            long max_length = file.length();
+        if (sequenceHeader)
+            packetSize = Math.max(packetSize, SequenceHeader.SIZE);
 
-            // select random content
-            Random rGen = new Random();
-            int choice = rGen.nextInt((int) (max_length-size));
+        return packetSize;
+    }
 
-            // move file pointer to the random position
-            file.seek(choice);
+    /**
+     * fill - generates size bytes of content into data[offset, offset + size), behind the sequence header if any
+     * @return int - number of bytes generated
+     */
+    private int fill(byte[] data, int offset, int size) {
 
-            // read content of size into data byte []
-            file.read(data);
+        int headerLength = 0;
 
-            file.close();
+        if (sequenceHeader) {
+            SequenceHeader.prepare(data, offset, flowId, runId);
+            headerLength = SequenceHeader.SIZE;
+        }
 
-            if (debugLogging) {   Logger.log( TAG , "- Read " + data.length + " bytes [" + new String(data, StandardCharsets.UTF_8) +"]"  ); }
+        int dataLength = headerLength + contentSource.fill(data, offset + headerLength, size - headerLength);
 
+        if (debugLogging) {   Logger.log( readLogLimit, Logger.Level.DEBUG, TAG , () -> "- Read " + dataLength + " bytes" ); }
 
+        return dataLength;
+    }
 
-        } catch (FileNotFoundException e) {
-            Logger.log( TAG , "- Error Content File not Found." );
-        } catch (IOException e) {
-            Logger.log( TAG , "- Error Content file length unknown." );
+    /**
+     * fill - generates size bytes of content straight into data[offset, offset + size), behind the sequence header
+     * if any
+     * @return int - number of bytes generated
+     */
+    private int fill(ByteBuffer data, int offset, int size) {
+
+        int headerLength = 0;
+
+        if (sequenceHeader) {
+            SequenceHeader.prepare(data, offset, flowId, runId);
+            headerLength = SequenceHeader.SIZE;
         }
 
-        return data;
+        int dataLength = headerLength + contentSource.fill(data, offset + headerLength, size - headerLength);
+
+        if (debugLogging) {   Logger.log( readLogLimit, Logger.Level.DEBUG, TAG , () -> "- Read " + dataLength + " bytes" ); }
 
+        return dataLength;
     }
 
     /**
-     * dataGenerator - generates content
+     * getContentPacket - generates content and encapsulates into a IPV4/UDP packet
+     * @param mtuSize
+     * @param varyPacketSize
      * @return byte[]
      */
-    private byte[] dataGenerator_test(int size) {
-
-        // data buffer
-        byte[] sendData = new byte[size];
-
-        // content choices
-        String content1 = "This is a test message.";
-        String content2 = "Wakeup";
-        String content3 = "I have a lot to say about the weather AND other InTeresting ToPicS !";
-        String content4 = "Testing 1234 ...... Testing 1234 ././././ Chatty Topic #2 #5, %D% R1";
-        String content5 = "Another message another day.";
-
-        String contentToSend = "";
-
-        // select random content
-        Random rGen = new Random();
-        int choice = rGen.nextInt(5) + 1;
-
-        switch (choice) {
-            case 1:
-                contentToSend = content1;
-                break;
-            case 2:
-                contentToSend = content2;
-                break;
-            case 3:
-                contentToSend = content3;
-                break;
-            case 4:
-                contentToSend = content4;
-                break;
-            case 5:
-                contentToSend = content5;
-                break;
-            default:
-                contentToSend = TAG + "Error - check rGen !";
+    public byte[] getContentPacket(int mtuSize, boolean varyPacketSize) {
+
+        int packetSize = payloadSize(mtuSize, varyPacketSize);
+
+        if (!hasUDPHeader) {
+            byte[] data = new byte[packetSize];
+            int dataLength = fill(data, 0, packetSize);
+
+            return (dataLength == packetSize) ? data : Arrays.copyOf(data, dataLength);
         }
 
-        sendData = contentToSend.getBytes();
-        return sendData;
+        // content is generated straight into the packet, behind room for the header
+        byte[] packet = new byte[HeaderTemplate.HEADER_SIZE + packetSize];
+        int dataLength = fill(packet, HeaderTemplate.HEADER_SIZE, packetSize);
+
+        if (dataLength != packetSize)
+            packet = Arrays.copyOf(packet, HeaderTemplate.HEADER_SIZE + dataLength);
+
+        headerEncapsulator(packet, dataLength);
+
+        return packet;
     }
 
     /**
-     * getContentPacket - generates content and encapsulates into a IPV4/UDP packet
+     * fillContentPacket - generates content and encapsulates into a IPV4/UDP packet written in place into packet,
+     * the packet is left flipped (position 0, limit packet length) and ready to send
+     * @param packet - buffer of at least HeaderTemplate.HEADER_SIZE + mtuSize bytes
      * @param mtuSize
      * @param varyPacketSize
-     * @return byte[]
+     * @return int - packet length
      */
-    public byte[] getContentPacket(int mtuSize, boolean varyPacketSize) {
+    public int fillContentPacket(ByteBuffer packet, int mtuSize, boolean varyPacketSize) {
 
-        int packetSize = mtuSize;
+        int packetSize = payloadSize(mtuSize, varyPacketSize);
 
-        if (varyPacketSize)
-        {
-            // select random content
-            Random rGen = new Random();
-            packetSize = rGen.nextInt(mtuSize) + 1;
+        int packetLength;
+
+        if (!hasUDPHeader) {
+            packetLength = fill(packet, 0, packetSize);
+        } else {
+            int dataLength = fill(packet, HeaderTemplate.HEADER_SIZE, packetSize);
+            long dataSum = IPUtils.IPHeaderChecksum.partialSum(packet, HeaderTemplate.HEADER_SIZE, dataLength);
+
+            headerTemplate.write(packet, 0, dataLength, dataSum);
+            packetLength = HeaderTemplate.HEADER_SIZE + dataLength;
         }
 
-        if (hasUDPHeader)
-            return headerEncapsulator(dataGenerator_fromFile(packetSize));
+        packet.limit(packetLength);
+        packet.position(0);
 
-        return dataGenerator_fromFile(packetSize);
+        return packetLength;
     }
 }
@@ -0,0 +1,40 @@
+package vt.wurrego;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Source of packet payloads
+ *
+ * A flow's ContentSelector fills every payload from the source picked by its descriptor (content_source). A source
+ * writes straight into the caller's buffer and never allocates per packet. It is only used by the one thread
+ * building the flow's packets, so implementations keep their state without synchronization.
+ *
+ * Created by wurrego on 5/14/17.
+ */
+public interface ContentSource {
+
+    /**
+     * fill - writes up to size bytes of content into data[offset, offset + size)
+     * @param data
+     * @param offset
+     * @param size
+     * @return int - number of bytes written
+     */
+    int fill(byte[] data, int offset, int size);
+
+    /**
+     * fill - writes up to size bytes of content into data[index, index + size) using absolute puts, the position
+     * and limit of data are left untouched
+     * @param data
+     * @param index
+     * @param size
+     * @return int - number of bytes written
+     */
+    int fill(ByteBuffer data, int index, int size);
+
+    /**
+     * close - releases what the source holds, the flow no longer fills from it
+     */
+    default void close() {
+    }
+}
@@ -0,0 +1,159 @@
+package vt.wurrego;
+
+import vt.wurrego.utils.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Class for serving content from a memory-mapped file
+ *
+ * The file is mapped once, read-only, in segments of SEGMENT_SIZE bytes. Consecutive segments overlap by
+ * MAX_SLICE_SIZE bytes so that any slice of up to MAX_SLICE_SIZE bytes lies entirely within a single segment,
+ * which lets corpora larger than 2 GB be served without any per-packet file I/O.
+ *
+ * Reads only use absolute positions, so one store can be shared by any number of threads.
+ */
+public class ContentStore {
+
+    /**
+     * class parameters
+     */
+    public static final int MAX_SLICE_SIZE = 65535;
+    static final long SEGMENT_SIZE = 1L << 30;
+    private static final int RESIDENT_PROBE_SIZE = 1 << 20;
+
+    private final String contentFileName;
+    private final MappedByteBuffer[] segments;
+    private final long length;
+    private final String TAG;
+
+    /**
+     * ContentStore - maps the provided content file
+     * @param contentFileName
+     * @throws IOException - also when the file is empty
+     */
+    public ContentStore(String contentFileName) throws IOException {
+
+        this.contentFileName = contentFileName;
+
+        // debug parameters
+        TAG = " [" + this.getClass().getSimpleName() + " - " + contentFileName + "] ";
+
+        try (FileChannel channel = FileChannel.open(Paths.get(contentFileName), StandardOpenOption.READ)) {
+
+            this.length = channel.size();
+
+            // nothing to slice payloads from
+            if (length == 0)
+                throw new IOException("Empty content file");
+
+            int numberSegments = (int) ((length + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+            this.segments = new MappedByteBuffer[numberSegments];
+
+            for (int i = 0; i < numberSegments; i++) {
+                long position = i * SEGMENT_SIZE;
+                long size = Math.min(SEGMENT_SIZE + MAX_SLICE_SIZE, length - position);
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+            }
+        }
+
+        Logger.log( TAG , "- Mapped " + length + " bytes in " + segments.length + " segment(s)" );
+    }
+
+    /**
+     * length - size of the content in bytes
+     * @return long
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * residentBytes - bytes of the content held in memory, probed in RESIDENT_PROBE_SIZE steps, a step counts when
+     * all of its pages are resident
+     * @return long
+     */
+    public long residentBytes() {
+        long resident = 0;
+
+        for (int i = 0; i < segments.length; i++) {
+            int size = (int) Math.min(SEGMENT_SIZE, length - i * SEGMENT_SIZE);
+
+            for (int position = 0; position < size; position += RESIDENT_PROBE_SIZE) {
+                int probeSize = Math.min(RESIDENT_PROBE_SIZE, size - position);
+
+                if (segments[i].slice(position, probeSize).isLoaded())
+                    resident += probeSize;
+            }
+        }
+
+        return resident;
+    }
+
+    /**
+     * getContentFileName - path of the mapped file
+     * @return String
+     */
+    public String getContentFileName() {
+        return contentFileName;
+    }
+
+    /**
+     * get - byte at offset
+     * @param offset - absolute offset into the content
+     * @return byte
+     */
+    public byte get(long offset) {
+        int segment = (int) (offset / SEGMENT_SIZE);
+        int position = (int) (offset - segment * SEGMENT_SIZE);
+
+        return segments[segment].get(position);
+    }
+
+    /**
+     * read - copies size bytes starting at offset into dst
+     * @param offset - absolute offset into the content
+     * @param dst
+     * @param dstOffset
+     * @param size - must not exceed MAX_SLICE_SIZE
+     */
+    public void read(long offset, byte[] dst, int dstOffset, int size) {
+        int segment = (int) (offset / SEGMENT_SIZE);
+        int position = (int) (offset - segment * SEGMENT_SIZE);
+
+        segments[segment].get(position, dst, dstOffset, size);
+    }
+
+    /**
+     * read - copies size bytes starting at offset into dst[dstIndex, dstIndex + size) using an absolute put,
+     * the position and limit of dst are left untouched
+     * @param offset - absolute offset into the content
+     * @param dst
+     * @param dstIndex
+     * @param size - must not exceed MAX_SLICE_SIZE
+     */
+    public void read(long offset, ByteBuffer dst, int dstIndex, int size) {
+        int segment = (int) (offset / SEGMENT_SIZE);
+        int position = (int) (offset - segment * SEGMENT_SIZE);
+
+        dst.put(dstIndex, segments[segment], position, size);
+    }
+
+    /**
+     * slice - read-only view of size bytes starting at offset, backed by the mapping
+     * @param offset - absolute offset into the content
+     * @param size - must not exceed MAX_SLICE_SIZE
+     * @return ByteBuffer
+     */
+    public ByteBuffer slice(long offset, int size) {
+        int segment = (int) (offset / SEGMENT_SIZE);
+        int position = (int) (offset - segment * SEGMENT_SIZE);
+
+        return segments[segment].slice(position, size).asReadOnlyBuffer();
+    }
+}
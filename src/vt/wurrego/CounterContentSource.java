@@ -0,0 +1,58 @@
+package vt.wurrego;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Content source of a running counter
+ *
+ * Payloads are consecutive 32-bit big-endian values of a counter that runs on across the flow's packets, so a
+ * receiver can check each payload continues the previous one. A trailing partial word holds the leading bytes of
+ * its value, the next payload starts with the following value.
+ *
+ * Created by wurrego on 5/14/17.
+ */
+public class CounterContentSource implements ContentSource {
+
+    private static final VarHandle INTS = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+    private int counter;
+
+    @Override
+    public int fill(byte[] data, int offset, int size) {
+
+        int i = 0;
+        for (; i + 4 <= size; i += 4)
+            INTS.set(data, offset + i, counter++);
+
+        if (i < size) {
+            int value = counter++;
+            for (int shift = 24; i < size; i++, shift -= 8)
+                data[offset + i] = (byte) (value >>> shift);
+        }
+
+        return size;
+    }
+
+    @Override
+    public int fill(ByteBuffer data, int index, int size) {
+
+        boolean bigEndian = data.order() == ByteOrder.BIG_ENDIAN;
+
+        int i = 0;
+        for (; i + 4 <= size; i += 4) {
+            int value = counter++;
+            data.putInt(index + i, bigEndian ? value : Integer.reverseBytes(value));
+        }
+
+        if (i < size) {
+            int value = counter++;
+            for (int shift = 24; i < size; i++, shift -= 8)
+                data.put(index + i, (byte) (value >>> shift));
+        }
+
+        return size;
+    }
+}
@@ -0,0 +1,71 @@
+package vt.wurrego;
+
+import java.nio.ByteBuffer;
+import java.util.SplittableRandom;
+
+/**
+ * Content source slicing payloads out of a mapped content file
+ *
+ * Each payload is a copy of size bytes from a random position of the file, or from the start of a random record
+ * when the file has a record index.
+ *
+ * Created by wurrego on 5/14/17.
+ */
+public class FileContentSource implements ContentSource {
+
+    private final ContentStore contentStore;
+    private final RecordIndex recordIndex;
+    private final SplittableRandom random;
+
+    /**
+     * FileContentSource - serves slices of a shared content store
+     * @param contentStore - released on close()
+     * @param recordIndex - null to start payloads at any byte
+     * @param random
+     */
+    public FileContentSource(ContentStore contentStore, RecordIndex recordIndex, SplittableRandom random) {
+        this.contentStore = contentStore;
+        this.recordIndex = recordIndex;
+        this.random = random;
+    }
+
+    @Override
+    public int fill(byte[] data, int offset, int size) {
+
+        // content can not be longer than the file itself or a single mapped slice
+        size = (int) Math.min(Math.min(size, ContentStore.MAX_SLICE_SIZE), contentStore.length());
+
+        contentStore.read(choosePosition(size), data, offset, size);
+        return size;
+    }
+
+    @Override
+    public int fill(ByteBuffer data, int index, int size) {
+
+        // content can not be longer than the file itself or a single mapped slice
+        size = (int) Math.min(Math.min(size, ContentStore.MAX_SLICE_SIZE), contentStore.length());
+
+        // copied straight from the mapping into the buffer
+        contentStore.read(choosePosition(size), data, index, size);
+        return size;
+    }
+
+    @Override
+    public void close() {
+        ContentCache.release(contentStore);
+    }
+
+    /**
+     * choosePosition - random start of size bytes of content, the start of a random record when the content is
+     * indexed, moved back where the record is too close to the end of the file
+     * @param size
+     * @return long
+     */
+    private long choosePosition(int size) {
+
+        if (recordIndex == null)
+            return random.nextLong(contentStore.length() - size + 1);
+
+        return Math.min(recordIndex.offset(random.nextInt(recordIndex.size())), contentStore.length() - size);
+    }
+}
@@ -0,0 +1,85 @@
+package vt.wurrego;
+
+import vt.wurrego.utils.Logger;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Event-loop scheduler driving all Markov ticks and packet sends
+ *
+ * Instead of a platform thread per ContentGenerator and per TxSocket, every flow is a task in a single priority
+ * queue of next-fire deadlines, executed by a fixed pool of workers sized to the core count. A generator fires at
+ * its clock_hz, a TxSocket reschedules itself at the deadline of its next burst.
+ *
+ * Created by wurrego on 5/8/17.
+ */
+public class FlowScheduler {
+
+    /**
+     * class parameters
+     */
+    private final ScheduledThreadPoolExecutor executor;
+    private final String TAG;
+
+    /**
+     * FlowScheduler - creates the worker pool
+     * @param workers - number of worker threads
+     */
+    public FlowScheduler(int workers) {
+
+        // debug parameters
+        TAG = " [" + this.getClass().getSimpleName() + "] ";
+
+        final AtomicInteger workerCount = new AtomicInteger();
+        executor = new ScheduledThreadPoolExecutor(workers, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "FlowScheduler-" + workerCount.incrementAndGet());
+            }
+        });
+
+        // cancelled ticks of stopped flows should not linger in the queue
+        executor.setRemoveOnCancelPolicy(true);
+
+        Logger.log( TAG , "- Started " + workers + " workers" );
+    }
+
+    /**
+     * FlowScheduler - creates a worker pool sized to the core count
+     */
+    public FlowScheduler() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * scheduleAtRate - fires task at a fixed rate, executions of the same task never overlap
+     * @param task
+     * @param initialDelayNanos
+     * @param periodNanos
+     * @return ScheduledFuture - cancel to stop firing
+     */
+    public ScheduledFuture<?> scheduleAtRate(Runnable task, long initialDelayNanos, long periodNanos) {
+        return executor.scheduleAtFixedRate(task, initialDelayNanos, periodNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * schedule - fires task once after delayNanos
+     * @param task
+     * @param delayNanos
+     * @return ScheduledFuture
+     */
+    public ScheduledFuture<?> schedule(Runnable task, long delayNanos) {
+        return executor.schedule(task, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * shutdown - stops accepting tasks and drops pending ones
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -1,13 +1,15 @@
 package vt.wurrego;
 
-import com.google.common.util.concurrent.RateLimiter;
-import com.google.gson.Gson;
-import com.google.gson.JsonIOException;
-import com.google.gson.JsonSyntaxException;
+import vt.wurrego.utils.CommonEnums;
 import vt.wurrego.utils.Logger;
+import vt.wurrego.utils.Metrics;
 
 import java.io.*;
-import java.util.ArrayList;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 
 
@@ -19,8 +21,12 @@ class PacketSender {
     /**
      * class parameters
      */
-    final static double masterClock_Hz = 1.0/10.0;
+    final static CountDownLatch terminated = new CountDownLatch(1);
+    final static long shutdownTimeout_Milliseconds = 1000;
+    final static int latencyInterval_Seconds = 10;
     final static String TAG = " [" + PacketSender.class.getSimpleName() + "] ";
+    final static String contentInfo_FileName = "contentDescriptors.json";
+    final static int receiveReport_Seconds = 1;
 
     /**
      * main() - Entry Point
@@ -28,85 +34,144 @@ class PacketSender {
      */
     public static void main(String[] args) {
 
-        ContentInfo contentInfo =  loadContentInfo("contentDescriptors.json");
+        // receiver mode, counts the packets of flows sent with a sequence header
+        if (args.length > 0 && args[0].equals("--receive")) {
+            receive(args);
+            return;
+        }
+
+        ContentInfo contentInfo =  ContentInfo.load(contentInfo_FileName);
 
         // no content so quit
-        if (contentInfo.contentDescriptors.size() < 1)
+        if (contentInfo == null || contentInfo.contentDescriptors == null || contentInfo.contentDescriptors.size() < 1)
                 return;
 
-        ArrayList<ContentGenerator> contentGenerators_ThreadList = new ArrayList<ContentGenerator>();
-
-        for (ContentInfo.ContentDescriptors cd : contentInfo.contentDescriptors ) {
-            ContentGenerator cg = new ContentGenerator(cd, contentInfo.debug_level);
-            cg.start();
-            contentGenerators_ThreadList.add(cg);
-        }
-
-        // rateLimiter will uniformely distribute the packet sends per second
-        RateLimiter rateLimiter = RateLimiter.create(masterClock_Hz);
+        // logging is asynchronous, debug lines are only built with a debug level set
+        Logger.setLevel((contentInfo.debug_level > 0) ? Logger.Level.DEBUG : Logger.Level.INFO);
+
+        // thread per generator and socket (platform or virtual), else a single event-loop scheduler shared by all flows
+        CommonEnums.ExecutionMode executionMode = contentInfo.execution_mode;
+        if (executionMode == null)
+            executionMode = CommonEnums.ExecutionMode.THREADS;
+
+        FlowScheduler scheduler = null;
+        if (executionMode == CommonEnums.ExecutionMode.SCHEDULER)
+            scheduler = new FlowScheduler();
+
+        // every flow splits its random streams off one master seed in descriptor order, so a fixed seed reproduces
+        // the packet sequence of each flow, an unset seed is picked at random and logged
+        long seed = (contentInfo.seed != null) ? contentInfo.seed : new SplittableRandom().nextLong();
+        Logger.log( TAG, "Random seed " + seed);
+        SplittableRandom seeds = new SplittableRandom(seed);
+
+        // start every flow, then add, remove or retune flows as the descriptor file changes
+        final ContentReloader contentReloader = new ContentReloader(contentInfo_FileName, executionMode, scheduler, seeds);
+        contentReloader.apply(contentInfo);
+        contentReloader.start();
+
+        // stop all flows on exit
+        final FlowScheduler flowScheduler = scheduler;
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                shutdown(contentReloader.shutdown(), flowScheduler);
+            }
+        }, "Shutdown"));
 
-        while (true) {
+        // metrics are exposed through JMX and, when a port is configured, in Prometheus text format
+        if (contentInfo.metrics_port > 0)
+            Metrics.startHttpEndpoint(contentInfo.metrics_port);
 
-            // acquire rate token
-            rateLimiter.acquire();
+        // latency histograms are snapshot and reset every interval
+        Metrics.startLatencySnapshots((contentInfo.latency_interval_seconds > 0) ? contentInfo.latency_interval_seconds : latencyInterval_Seconds);
 
-            Logger.log(true);
-            Logger.log( TAG, contentGenerators_ThreadList.size() + " content generators alive:");
+        // keep running until the process is terminated
+        try {
+            terminated.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
+    /**
+     * shutdown - structured shutdown, stops every generator and waits for it and its sockets to finish
+     * @param contentGenerators
+     * @param scheduler - may be null
+     */
+    static void shutdown(List<ContentGenerator> contentGenerators, FlowScheduler scheduler)
+    {
+        Logger.log( TAG, "Shutting down " + contentGenerators.size() + " content generators.");
 
-            for (ContentGenerator cg : contentGenerators_ThreadList ) {
-               Logger.log( TAG, cg.getUserProvidedName() + " - Total Packets Sent: " + cg.get_PacketsSent_count() );
-            }
+        for (ContentGenerator cg : contentGenerators)
+            cg.shutdown();
 
+        try {
+            for (ContentGenerator cg : contentGenerators)
+                cg.awaitTermination(shutdownTimeout_Milliseconds);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
 
+        if (scheduler != null)
+            scheduler.shutdown();
 
+        Metrics.stopHttpEndpoint();
+        Metrics.stopLatencySnapshots();
+        Logger.flush();
+        terminated.countDown();
     }
 
     /**
-     * getContentDescriptors - get content descriptors for json
-     * @param filename
-     * @return ContentInfo
+     * receive - runs a PacketReceiver until the process is terminated
+     * @param args - --receive [address:]port [report_seconds]
      */
-    static public ContentInfo loadContentInfo(String filename)
+    static void receive(String[] args)
     {
-        ContentInfo contentInfo = null;
+        if (args.length < 2) {
+            Logger.log( TAG, "Usage: --receive [address:]port [report_seconds]");
+            Logger.flush();
+            return;
+        }
 
-        File file = new File(filename);
-        Gson gson = new Gson();
+        InetSocketAddress address;
+        int reportSeconds = receiveReport_Seconds;
 
-        BufferedReader br = null;
         try {
-            if (file.exists()) {
-                br = new BufferedReader(new InputStreamReader(new FileInputStream(filename)));
-                contentInfo = gson.fromJson(br, ContentInfo.class);
-            } else {
-                Logger.log( TAG, "ERROR loading Content Descriptors - File Not Found.");
-                return null;
-            }
-        } catch (FileNotFoundException e) {
-            Logger.log( TAG, "ERROR loading Content Descriptors - File Not Found.");
-            return null;
-        } catch (JsonIOException e) {
-            Logger.log( TAG, "ERROR loading Content Descriptors - JSON IO Exception.\n" + e);
-            return null;
-        } catch (JsonSyntaxException e) {
-            Logger.log( TAG, "ERROR loading Content Descriptors - JSON Syntax Exception.\n" + e);
-            return null;
-        } finally {
-            try {
-                if (br != null)
-                    br.close();
-            } catch (IOException e) {
-                Logger.log( TAG, "ERROR closing Content Descriptor File.");
-                return null;
-            }
+            int separator = args[1].lastIndexOf(':');
+            int port = Integer.parseInt(args[1].substring(separator + 1));
+            address = (separator < 0) ? new InetSocketAddress(port) : new InetSocketAddress(args[1].substring(0, separator), port);
+
+            if (args.length > 2)
+                reportSeconds = Math.max(1, Integer.parseInt(args[2]));
+        } catch (IllegalArgumentException e) {
+            Logger.log( TAG, "ERROR invalid receive address " + args[1] + ".\n" + e);
+            Logger.flush();
+            return;
         }
 
-        return contentInfo;
-    }
+        final PacketReceiver packetReceiver = new PacketReceiver(address, reportSeconds);
 
+        // report once more and stop on exit
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                packetReceiver.shutdown();
 
+                try {
+                    terminated.await(shutdownTimeout_Milliseconds, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, "Shutdown"));
 
+        try {
+            packetReceiver.run();
+        } catch (IOException e) {
+            Logger.log( TAG, "ERROR receiving on " + address + ".\n" + e);
+        }
 
+        Logger.flush();
+        terminated.countDown();
+    }
 }
@@ -0,0 +1,230 @@
+package vt.wurrego;
+
+import vt.wurrego.utils.CommonEnums;
+import vt.wurrego.utils.FlowMetrics;
+import vt.wurrego.utils.HeaderTemplate;
+import vt.wurrego.utils.Logger;
+import vt.wurrego.utils.PacketRing;
+import vt.wurrego.utils.Threads;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Builder stage filling a flow's packet ring ahead of its sender
+ *
+ * The builder runs on a thread of its own and is the only user of the flow's content selector, so file reads and
+ * checksums never delay a send. It fills the ring until full, then parks until the sender drains it to the low-water
+ * mark. The sender takes packets from the ring and only waits on the builder when the ring has run dry, spinning
+ * briefly and then parking until the builder publishes. On the scheduler it skips the packet instead, so a worker
+ * shared with other flows is never held up.
+ *
+ * Packets are built with the descriptor's size settings, which all sending states share. When a capture is replayed
+ * with its original timing, each packet carries its capture gap through the ring to the sender.
+ *
+ * Created by wurrego on 5/12/17.
+ */
+public class PacketBuilder implements Runnable {
+
+    /**
+     * class parameters
+     */
+    private static final AtomicInteger builderCount = new AtomicInteger();
+    private static final long IDLE_PARK_NANOS = 1000000L;
+    private static final int SPIN_TRIES = 100;
+
+    private final ContentSelector contentSelector;
+    private final PacketRing ring;
+    private final FlowMetrics metrics;
+    private final int mtuBytes;
+    private final boolean varyPacketSize;
+    private final int lowWater;
+    private final CommonEnums.ExecutionMode executionMode;
+    private final String name;
+    private final String TAG;
+
+    private volatile boolean running;
+    private volatile boolean waiting;
+    private Thread thread;
+
+    // sender parked on an empty ring, unparked by the builder's next publish
+    private volatile boolean senderWaiting;
+    private volatile Thread sender;
+
+    // sender side, capture gaps of the packets taken since the sender last asked
+    private final boolean replayTimed;
+    private long replayDelayNanos;
+
+    /**
+     * PacketBuilder - allocates the ring of a flow
+     * @param contentSelector - used by the builder thread only from start() on
+     * @param metrics
+     * @param cd
+     * @param ringSize - number of packets built ahead
+     * @param executionMode - of the sender, decides how it waits on an empty ring
+     */
+    public PacketBuilder(ContentSelector contentSelector, FlowMetrics metrics, ContentInfo.ContentDescriptors cd, int ringSize, CommonEnums.ExecutionMode executionMode) {
+
+        this.contentSelector = contentSelector;
+        this.ring = new PacketRing(ringSize, HeaderTemplate.HEADER_SIZE + cd.packet_mtu_size_bytes);
+        this.metrics = metrics;
+        this.replayTimed = contentSelector.isReplayTimed();
+        this.mtuBytes = cd.packet_mtu_size_bytes;
+        this.varyPacketSize = cd.packet_variable_size;
+        this.lowWater = ring.capacity() / 2;
+        this.executionMode = executionMode;
+        this.name = this.getClass().getSimpleName() + "-" + builderCount.getAndIncrement();
+
+        // debug parameters
+        TAG = " [" + name + " - " + cd.name + "] ";
+
+        this.running = true;
+    }
+
+    /**
+     * start - runs the builder on a thread of its own
+     * @param virtual - use a virtual thread when the JVM supports it
+     */
+    public void start(boolean virtual) {
+        thread = Threads.newThread(this, name, virtual);
+        thread.start();
+    }
+
+    /**
+     * shutdown - stops building and releases a sender waiting on an empty ring
+     */
+    public void shutdown() {
+        running = false;
+
+        if (thread != null)
+            LockSupport.unpark(thread);
+
+        Thread s = sender;
+        if (s != null)
+            LockSupport.unpark(s);
+    }
+
+    /**
+     * awaitTermination - waits for the builder thread to finish after shutdown()
+     * @param timeoutMillis
+     * @throws InterruptedException
+     */
+    public void awaitTermination(long timeoutMillis) throws InterruptedException {
+        if (thread != null)
+            thread.join(timeoutMillis);
+    }
+
+    @Override
+    public void run() {
+
+        Logger.log( TAG , "- Building " + ring.capacity() + " packets ahead" );
+
+        try {
+            while (running) {
+                ByteBuffer slot = ring.claim();
+
+                // full, wait for the sender to drain the ring to the low-water mark
+                if (slot == null) {
+                    waiting = true;
+
+                    if (ring.size() > lowWater)
+                        LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+
+                    waiting = false;
+                    continue;
+                }
+
+                long buildNanos = System.nanoTime();
+                int length = contentSelector.fillContentPacket(slot, mtuBytes, varyPacketSize);
+                metrics.recordBuildTime(System.nanoTime() - buildNanos);
+                ring.publish(length, contentSelector.takeReplayDelayNanos());
+
+                if (senderWaiting)
+                    LockSupport.unpark(sender);
+            }
+        } catch (RuntimeException e) {
+            Logger.log( Logger.Level.ERROR, TAG , "- Error building packet, stopped.\n" + e );
+        } finally {
+            // a sender waiting on the ring sees the builder is gone
+            running = false;
+        }
+    }
+
+    /**
+     * take - sender, next ready-to-send packet, with an empty ring spinning SPIN_TRIES times and then parking until
+     * the builder publishes, on the scheduler giving up right away
+     * @return ByteBuffer - null when the builder was stopped, or on the scheduler when the ring is empty
+     */
+    public ByteBuffer take() {
+
+        int fill = ring.size();
+        metrics.recordRingFill(fill);
+
+        ByteBuffer packet = ring.peek();
+
+        if (packet == null) {
+            metrics.recordRingUnderrun();
+            LockSupport.unpark(thread);
+
+            if (executionMode == CommonEnums.ExecutionMode.SCHEDULER)
+                return null;
+
+            for (int tries = 0; (packet = ring.peek()) == null; tries++) {
+                if (!running)
+                    return null;
+
+                if (tries < SPIN_TRIES) {
+                    Thread.onSpinWait();
+                    continue;
+                }
+
+                // the flag is set before the ring is checked again, a publish in between is not missed
+                sender = Thread.currentThread();
+                senderWaiting = true;
+
+                if (ring.peek() == null && running)
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+
+                senderWaiting = false;
+            }
+        }
+
+        if (replayTimed)
+            replayDelayNanos += ring.peekTag();
+
+        return packet;
+    }
+
+    /**
+     * takeReplayDelayNanos - sender, capture gaps of the packets taken since the previous call
+     * @return long - -1 when not replaying with the original timing
+     */
+    public long takeReplayDelayNanos() {
+
+        if (!replayTimed)
+            return -1;
+
+        long delayNanos = replayDelayNanos;
+        replayDelayNanos = 0;
+        return delayNanos;
+    }
+
+    /**
+     * release - sender, hands the taken packet's slot back, waking the builder at the low-water mark
+     */
+    public void release() {
+        ring.release();
+
+        if (waiting && ring.size() <= lowWater)
+            LockSupport.unpark(thread);
+    }
+
+    public int getCapacity() {
+        return ring.capacity();
+    }
+
+    public int getSlotSize() {
+        return ring.getSlotSize();
+    }
+}
@@ -0,0 +1,323 @@
+package vt.wurrego;
+
+import vt.wurrego.utils.LatencyHistogram;
+import vt.wurrego.utils.Logger;
+import vt.wurrego.utils.SequenceHeader;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Receiver for flows sent with a sequence header
+ *
+ * Listens on a UDP port and keeps, per flow id, the received, lost, duplicated and reordered packet counts and a
+ * histogram of the one-way latency from the send timestamp (meaningful on loopback or between synchronized clocks).
+ * The last WINDOW sequences below the highest one received are tracked in a bitmap, a sequence seen twice in it is a
+ * duplicate and one arriving below the highest is reordered. A flow whose packets carry a new run id restarted and
+ * its counts start over, stragglers of the previous run are ignored. Payloads behind a custom IPv4/UDP header are
+ * found as well.
+ *
+ * Datagrams are drained from a non-blocking channel into one direct buffer by a single thread, the steady state does
+ * not allocate.
+ *
+ * Created by wurrego on 5/14/17.
+ */
+public class PacketReceiver {
+
+    /**
+     * class parameters
+     */
+    private static final int RECEIVE_BUFFER_BYTES = 16 << 20;
+    private static final int MAX_DATAGRAM_BYTES = 65536;
+    private static final int WINDOW = 1 << 16;
+
+    private final InetSocketAddress address;
+    private final long reportNanos;
+    private final Map<Integer, FlowStats> flows = new LinkedHashMap<Integer, FlowStats>();
+    private final String TAG;
+
+    private volatile boolean running;
+    private Selector selector;
+    private FlowStats lastFlow;
+    private long unrecognized;
+    private long reportedUnrecognized;
+
+    /**
+     * PacketReceiver - creates a receiver, nothing is bound before run()
+     * @param address - local address and port to listen on
+     * @param reportSeconds - interval between reports
+     */
+    public PacketReceiver(InetSocketAddress address, int reportSeconds) {
+
+        this.address = address;
+        this.reportNanos = TimeUnit.SECONDS.toNanos(reportSeconds);
+        this.running = true;
+
+        // debug parameters
+        TAG = " [" + this.getClass().getSimpleName() + " - " + address + "] ";
+    }
+
+    /**
+     * run - receives on the calling thread until shutdown(), reporting every interval and once more at the end
+     * @throws IOException
+     */
+    public void run() throws IOException {
+
+        try (DatagramChannel channel = DatagramChannel.open(); Selector selector = Selector.open()) {
+
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_BYTES);
+            channel.bind(address);
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+            this.selector = selector;
+
+            Logger.log( TAG , "- Listening, receive buffer " + channel.getOption(StandardSocketOptions.SO_RCVBUF) + " bytes" );
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_DATAGRAM_BYTES);
+            long lastReport = System.nanoTime();
+            long nextReport = lastReport + reportNanos;
+
+            while (running) {
+                selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(nextReport - System.nanoTime())));
+                selector.selectedKeys().clear();
+
+                long now = System.nanoTime();
+
+                // drain every datagram queued, breaking off for a report that is due
+                while (now < nextReport) {
+                    buffer.clear();
+                    SocketAddress source = channel.receive(buffer);
+                    if (source == null)
+                        break;
+
+                    now = System.nanoTime();
+                    buffer.flip();
+                    receive(buffer, source, SequenceHeader.epochNanos(now));
+                }
+
+                if (now >= nextReport) {
+                    report(now - lastReport);
+                    lastReport = now;
+                    nextReport = now + reportNanos;
+                }
+            }
+
+            report(System.nanoTime() - lastReport);
+        }
+    }
+
+    /**
+     * shutdown - stops receiving, run() returns after a last report
+     */
+    public void shutdown() {
+
+        running = false;
+
+        Selector s = selector;
+        if (s != null)
+            s.wakeup();
+    }
+
+    /**
+     * receive - counts a datagram against its flow
+     * @param datagram - from position 0 to limit
+     * @param source
+     * @param nowEpochNanos - receive time
+     */
+    private void receive(ByteBuffer datagram, SocketAddress source, long nowEpochNanos) {
+
+        int index = SequenceHeader.find(datagram);
+        if (index < 0) {
+            unrecognized++;
+            return;
+        }
+
+        int flowId = SequenceHeader.getFlowId(datagram, index);
+
+        // packets of a flow mostly arrive in runs, only look the flow up when it changes
+        FlowStats flow = lastFlow;
+        if (flow == null || flow.flowId != flowId) {
+            flow = flows.get(flowId);
+
+            if (flow == null) {
+                flow = new FlowStats(flowId, source);
+                flows.put(flowId, flow);
+                Logger.log( TAG , "- New flow " + flow );
+            }
+
+            lastFlow = flow;
+        }
+
+        int runId = SequenceHeader.getRunId(datagram, index);
+
+        if (runId != flow.runId) {
+            boolean counted = flow.highest >= 0;
+
+            // packets of the run before the restart still in flight
+            if (counted && runId == flow.previousRunId)
+                return;
+
+            flow.restart(runId, source);
+
+            if (counted)
+                Logger.log( TAG , "- Flow " + flow + " restarted, counts start over" );
+        }
+
+        flow.record(SequenceHeader.getSequence(datagram, index));
+        flow.latency.record(nowEpochNanos - SequenceHeader.getTimestamp(datagram, index));
+    }
+
+    /**
+     * report - logs every flow's counts and the latency percentiles since the previous report
+     * @param elapsedNanos - time since the previous report
+     */
+    private void report(long elapsedNanos) {
+
+        double seconds = Math.max(1, elapsedNanos) / 1e9;
+
+        for (FlowStats flow : flows.values()) {
+            LatencyHistogram.Snapshot latency = flow.latency.snapshotAndReset();
+            long lost = flow.lost();
+            long expected = flow.received + lost;
+
+            Logger.log( TAG , String.format("- Flow %s: %d received (%.0f pps), %d lost (%.3f%%), %d duplicates, %d reordered, "
+                            + "latency p50 %.1f p99 %.1f p99.9 %.1f max %.1f us",
+                    flow, flow.received, (flow.received - flow.reportedReceived) / seconds,
+                    lost, (expected > 0) ? 100.0 * lost / expected : 0.0, flow.duplicates, flow.reordered,
+                    latency.getValueAtPercentile(50) / 1e3, latency.getValueAtPercentile(99) / 1e3,
+                    latency.getValueAtPercentile(99.9) / 1e3, latency.getMax() / 1e3) );
+
+            flow.reportedReceived = flow.received;
+        }
+
+        if (unrecognized != reportedUnrecognized) {
+            Logger.log( Logger.Level.WARN, TAG , "- " + (unrecognized - reportedUnrecognized) + " datagrams without a sequence header" );
+            reportedUnrecognized = unrecognized;
+        }
+    }
+
+    /**
+     * Counts of a single flow, only touched by the receiving thread
+     */
+    private static final class FlowStats {
+        final int flowId;
+        SocketAddress source;
+        final LatencyHistogram latency = new LatencyHistogram();
+
+        // sequences in (highest - WINDOW, highest] received, bit (sequence % WINDOW)
+        final long[] window = new long[WINDOW / 64];
+        long first;
+        long highest = -1;
+        int runId;
+        int previousRunId;
+
+        long received;
+        long duplicates;
+        long reordered;
+        long reportedReceived;
+
+        FlowStats(int flowId, SocketAddress source) {
+            this.flowId = flowId;
+            this.source = source;
+        }
+
+        /**
+         * restart - starts counting a new run of the flow
+         * @param newRunId
+         * @param newSource - the restarted sender may use another port
+         */
+        void restart(int newRunId, SocketAddress newSource) {
+            previousRunId = runId;
+            runId = newRunId;
+            source = newSource;
+
+            Arrays.fill(window, 0);
+            highest = -1;
+            received = duplicates = reordered = reportedReceived = 0;
+        }
+
+        /**
+         * record - counts a sequence of the current run
+         * @param sequence
+         */
+        void record(long sequence) {
+
+            if (highest < 0) {
+                first = highest = sequence;
+                set(sequence);
+                received++;
+                return;
+            }
+
+            // older than the window, a straggler counted as received
+            if (sequence <= highest - WINDOW) {
+                received++;
+                reordered++;
+                first = Math.min(first, sequence);
+                return;
+            }
+
+            if (sequence > highest) {
+                // slide the window, forgetting the sequences it moves past
+                if (sequence - highest >= WINDOW)
+                    Arrays.fill(window, 0);
+                else
+                    for (long s = highest + 1; s < sequence; s++)
+                        clear(s);
+
+                highest = sequence;
+                set(sequence);
+                received++;
+                return;
+            }
+
+            if (isSet(sequence)) {
+                duplicates++;
+                return;
+            }
+
+            set(sequence);
+            received++;
+            reordered++;
+            first = Math.min(first, sequence);
+        }
+
+        /**
+         * lost - sequences between the first and the highest received that never arrived
+         * @return long
+         */
+        long lost() {
+            return (highest < 0) ? 0 : Math.max(0, highest - first + 1 - received);
+        }
+
+        private void set(long sequence) {
+            int bit = (int) (sequence & (WINDOW - 1));
+            window[bit >>> 6] |= 1L << bit;
+        }
+
+        private void clear(long sequence) {
+            int bit = (int) (sequence & (WINDOW - 1));
+            window[bit >>> 6] &= ~(1L << bit);
+        }
+
+        private boolean isSet(long sequence) {
+            int bit = (int) (sequence & (WINDOW - 1));
+            return (window[bit >>> 6] & (1L << bit)) != 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("0x%08x", flowId) + " from " + source;
+        }
+    }
+}
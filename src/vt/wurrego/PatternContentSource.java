@@ -0,0 +1,42 @@
+package vt.wurrego;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Content source repeating a fixed pattern
+ *
+ * Every payload starts at the start of the pattern. The pattern is repeated once, up front, over the largest
+ * payload, so filling is a single bulk copy.
+ *
+ * Created by wurrego on 5/14/17.
+ */
+public class PatternContentSource implements ContentSource {
+
+    private final byte[] block;
+
+    /**
+     * PatternContentSource - repeats pattern
+     * @param pattern - at least one byte
+     */
+    public PatternContentSource(byte[] pattern) {
+
+        block = new byte[ContentStore.MAX_SLICE_SIZE];
+
+        for (int i = 0; i < block.length; i += pattern.length)
+            System.arraycopy(pattern, 0, block, i, Math.min(pattern.length, block.length - i));
+    }
+
+    @Override
+    public int fill(byte[] data, int offset, int size) {
+        size = Math.min(size, block.length);
+        System.arraycopy(block, 0, data, offset, size);
+        return size;
+    }
+
+    @Override
+    public int fill(ByteBuffer data, int index, int size) {
+        size = Math.min(size, block.length);
+        data.put(index, block, 0, size);
+        return size;
+    }
+}
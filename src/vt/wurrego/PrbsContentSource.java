@@ -0,0 +1,106 @@
+package vt.wurrego;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Content source of a pseudo-random binary sequence
+ *
+ * PRBS-7, -15, -23 and -31 (x^7 + x^6 + 1, x^15 + x^14 + 1, x^23 + x^18 + 1 and x^31 + x^28 + 1, ITU-T O.150) from a
+ * Fibonacci LFSR seeded with all ones, most significant bit first. The sequence runs on across the flow's packets,
+ * so a bit-error-rate tester locks onto the stream once. The register advances a whole byte per step, each new bit
+ * only depends on bits already in the register, and PRBS-7, whose short tap does not allow that, repeats a
+ * precomputed period of 127 bytes.
+ *
+ * Created by wurrego on 5/14/17.
+ */
+public class PrbsContentSource implements ContentSource {
+
+    private final int length;
+    private final int tap;
+    private final long mask;
+    private long state;
+
+    // PRBS-7, one period of the byte stream
+    private byte[] period;
+    private int phase;
+
+    /**
+     * PrbsContentSource - starts the sequence
+     * @param order - 7, 15, 23 or 31
+     */
+    public PrbsContentSource(int order) {
+
+        switch (order) {
+            case 7:
+                tap = 6;
+                break;
+            case 15:
+                tap = 14;
+                break;
+            case 23:
+                tap = 18;
+                break;
+            case 31:
+                tap = 28;
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported PRBS order " + order);
+        }
+
+        this.length = order;
+        this.mask = (1L << order) - 1;
+        this.state = mask;
+
+        // 127 bits, so 127 bytes before the byte stream repeats
+        if (tap < 8) {
+            period = new byte[(int) mask];
+
+            for (int i = 0; i < period.length; i++) {
+                int value = 0;
+
+                for (int bit = 0; bit < 8; bit++) {
+                    long next = ((state >>> (length - 1)) ^ (state >>> (tap - 1))) & 1;
+                    state = ((state << 1) | next) & mask;
+                    value = (value << 1) | (int) next;
+                }
+
+                period[i] = (byte) value;
+            }
+        }
+    }
+
+    @Override
+    public int fill(byte[] data, int offset, int size) {
+
+        for (int i = 0; i < size; i++)
+            data[offset + i] = nextByte();
+
+        return size;
+    }
+
+    @Override
+    public int fill(ByteBuffer data, int index, int size) {
+
+        for (int i = 0; i < size; i++)
+            data.put(index + i, nextByte());
+
+        return size;
+    }
+
+    /**
+     * nextByte - next eight bits of the sequence
+     * @return byte
+     */
+    private byte nextByte() {
+
+        if (period != null) {
+            byte value = period[phase];
+            phase = (phase + 1 < period.length) ? phase + 1 : 0;
+            return value;
+        }
+
+        long value = ((state >>> (length - 8)) ^ (state >>> (tap - 8))) & 0xFF;
+        state = ((state << 8) | value) & mask;
+        return (byte) value;
+    }
+}
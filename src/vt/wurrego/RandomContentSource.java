@@ -0,0 +1,60 @@
+package vt.wurrego;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.SplittableRandom;
+
+/**
+ * Content source of random bytes
+ *
+ * Payloads are bulk filled eight bytes at a time from the flow's SplittableRandom stream, little-endian into arrays
+ * and buffers alike so a seed gives the same bytes whatever the tx mode.
+ *
+ * Created by wurrego on 5/14/17.
+ */
+public class RandomContentSource implements ContentSource {
+
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private final SplittableRandom random;
+
+    public RandomContentSource(SplittableRandom random) {
+        this.random = random;
+    }
+
+    @Override
+    public int fill(byte[] data, int offset, int size) {
+
+        int i = 0;
+        for (; i + 8 <= size; i += 8)
+            LONGS.set(data, offset + i, random.nextLong());
+
+        // tail shorter than a long
+        long bits = random.nextLong();
+        for (; i < size; i++, bits >>>= 8)
+            data[offset + i] = (byte) bits;
+
+        return size;
+    }
+
+    @Override
+    public int fill(ByteBuffer data, int index, int size) {
+
+        int i = 0;
+        for (; i + 8 <= size; i += 8)
+            putLong(data, index + i, random.nextLong());
+
+        // tail shorter than a long
+        long bits = random.nextLong();
+        for (; i < size; i++, bits >>>= 8)
+            data.put(index + i, (byte) bits);
+
+        return size;
+    }
+
+    private static void putLong(ByteBuffer data, int index, long value) {
+        data.putLong(index, (data.order() == ByteOrder.LITTLE_ENDIAN) ? value : Long.reverseBytes(value));
+    }
+}
@@ -0,0 +1,47 @@
+package vt.wurrego;
+
+import vt.wurrego.utils.CommonEnums;
+
+/**
+ * Immutable rate and size profile a TxSocket sends with
+ *
+ * The generator hands its long-lived TxSocket a new profile on every state transition, or null to pause it,
+ * instead of replacing the socket.
+ *
+ * Created by wurrego on 5/8/17.
+ */
+class RateProfile {
+
+    final int maxPacketsPerSecond;
+    final boolean variableRate;
+    final int mtuBytes;
+    final boolean varyPacketSize;
+    final int burstSize;
+
+    RateProfile(int maxPacketsPerSecond, boolean variableRate, int mtuBytes, boolean varyPacketSize, int burstSize) {
+        this.maxPacketsPerSecond = maxPacketsPerSecond;
+        this.variableRate = variableRate;
+        this.mtuBytes = mtuBytes;
+        this.varyPacketSize = varyPacketSize;
+        this.burstSize = Math.max(1, burstSize);
+    }
+
+    /**
+     * forState - profile to send with in state, null when the state does not send
+     * LOW and HIGH currently share the descriptor's rate and size settings
+     * @param cd
+     * @param state
+     * @return RateProfile
+     */
+    static RateProfile forState(ContentInfo.ContentDescriptors cd, CommonEnums.StateStatus state) {
+
+        switch (state) {
+            case LOW:
+            case HIGH:
+                return new RateProfile(cd.max_packets_per_second, cd.variable_rate, cd.packet_mtu_size_bytes, cd.packet_variable_size, cd.burst_size);
+
+            default:
+                return null;
+        }
+    }
+}
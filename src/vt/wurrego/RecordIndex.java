@@ -0,0 +1,237 @@
+package vt.wurrego;
+
+import vt.wurrego.utils.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Class indexing the record boundaries of a content file
+ *
+ * A record starts at the beginning of the file and right after every occurrence of the delimiter, e.g. "\n" for
+ * newline-delimited records or "</REUTERS>\n" for the articles of the Reuters SGML corpus. The file is scanned once,
+ * in parallel over chunks of the mapping, and the record offsets are cached next to it (file.ridx), keyed by the
+ * file's size and modification time and by the delimiter, so later runs load them without scanning. Picking a record
+ * is a single array lookup.
+ *
+ * Created by wurrego on 5/13/17.
+ */
+public class RecordIndex {
+
+    /**
+     * class parameters
+     */
+    static final String INDEX_SUFFIX = ".ridx";
+    private static final int INDEX_MAGIC = 0x52494458;
+    private static final int INDEX_VERSION = 1;
+    private static final int INDEX_HEADER_SIZE = 32;
+    private static final long MIN_CHUNK_SIZE = 1 << 20;
+
+    private final ContentStore contentStore;
+    private final byte[] delimiter;
+    private final String TAG;
+
+    // record offsets, ascending
+    private long[] offsets;
+
+    /**
+     * RecordIndex - loads or builds the record index of the content
+     * @param contentStore
+     * @param delimiter - ends a record, the next one starts right after it
+     * @throws IOException
+     */
+    public RecordIndex(ContentStore contentStore, String delimiter) throws IOException {
+
+        this.contentStore = contentStore;
+        this.delimiter = delimiter.getBytes(StandardCharsets.UTF_8);
+
+        // debug parameters
+        TAG = " [" + this.getClass().getSimpleName() + " - " + contentStore.getContentFileName() + "] ";
+
+        if (this.delimiter.length == 0)
+            throw new IOException("Empty record delimiter");
+
+        Path indexFile = Paths.get(contentStore.getContentFileName() + INDEX_SUFFIX);
+        long modified = Files.getLastModifiedTime(Paths.get(contentStore.getContentFileName())).toMillis();
+
+        if (loadIndex(indexFile, modified)) {
+            Logger.log( TAG , "- Loaded index of " + offsets.length + " records" );
+            return;
+        }
+
+        buildIndex();
+        Logger.log( TAG , "- Indexed " + offsets.length + " records" );
+
+        try {
+            saveIndex(indexFile, modified);
+        } catch (IOException e) {
+            Logger.log( TAG , "- Error caching index to " + indexFile + ".\n" + e );
+        }
+    }
+
+    /**
+     * size - number of records, at least 1
+     * @return int
+     */
+    public int size() {
+        return offsets.length;
+    }
+
+    /**
+     * offset - start of a record
+     * @param record - 0 to size() - 1
+     * @return long
+     */
+    public long offset(int record) {
+        return offsets[record];
+    }
+
+    /**
+     * buildIndex - scans chunks of the content in parallel and joins their record offsets in file order
+     */
+    private void buildIndex() {
+
+        final long length = contentStore.length();
+        int chunks = (int) Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), length / MIN_CHUNK_SIZE));
+        final long chunkSize = (length + chunks - 1) / chunks;
+
+        List<long[]> found = IntStream.range(0, chunks).parallel()
+                .mapToObj(chunk -> scan(chunk * chunkSize, Math.min(length, (chunk + 1) * chunkSize)))
+                .collect(Collectors.toList());
+
+        int records = 1;
+        for (long[] chunkOffsets : found)
+            records += chunkOffsets.length;
+
+        offsets = new long[records];
+        int next = 1;
+
+        for (long[] chunkOffsets : found) {
+            System.arraycopy(chunkOffsets, 0, offsets, next, chunkOffsets.length);
+            next += chunkOffsets.length;
+        }
+    }
+
+    /**
+     * scan - offsets of the records following the delimiters that start within [from, to), a delimiter may run
+     * past the end of the chunk
+     * @param from
+     * @param to
+     * @return long[]
+     */
+    private long[] scan(long from, long to) {
+
+        long length = contentStore.length();
+        long[] found = new long[256];
+        int count = 0;
+        byte first = delimiter[0];
+
+        for (long position = from; position < to; position++) {
+            if (contentStore.get(position) != first)
+                continue;
+
+            long recordStart = position + delimiter.length;
+
+            // the file's last delimiter starts no record
+            if (recordStart >= length)
+                continue;
+
+            int matched = 1;
+            while (matched < delimiter.length && contentStore.get(position + matched) == delimiter[matched])
+                matched++;
+
+            if (matched < delimiter.length)
+                continue;
+
+            if (count == found.length)
+                found = Arrays.copyOf(found, count * 2);
+
+            found[count++] = recordStart;
+        }
+
+        return Arrays.copyOf(found, count);
+    }
+
+    /**
+     * loadIndex - loads the cached index if it was built from the content as it is now, with the same delimiter
+     * @param indexFile
+     * @param modified - modification time of the content
+     * @return boolean - index was loaded
+     */
+    private boolean loadIndex(Path indexFile, long modified) {
+
+        if (!Files.isRegularFile(indexFile))
+            return false;
+
+        try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+
+            if (channel.size() < INDEX_HEADER_SIZE + delimiter.length)
+                return false;
+
+            MappedByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (index.getInt() != INDEX_MAGIC || index.getInt() != INDEX_VERSION
+                    || index.getLong() != contentStore.length() || index.getLong() != modified
+                    || index.getInt() != delimiter.length)
+                return false;
+
+            byte[] indexedDelimiter = new byte[delimiter.length];
+            index.get(indexedDelimiter);
+            if (!Arrays.equals(indexedDelimiter, delimiter))
+                return false;
+
+            int entries = index.getInt();
+            if (entries < 1 || channel.size() != INDEX_HEADER_SIZE + delimiter.length + entries * 8L)
+                return false;
+
+            offsets = new long[entries];
+            index.asLongBuffer().get(offsets);
+            return true;
+
+        } catch (IOException e) {
+            Logger.log( TAG , "- Error loading index " + indexFile + ".\n" + e );
+            return false;
+        }
+    }
+
+    /**
+     * saveIndex - caches the index next to the content
+     * @param indexFile
+     * @param modified - modification time of the content
+     * @throws IOException
+     */
+    private void saveIndex(Path indexFile, long modified) throws IOException {
+
+        if (offsets.length > (Integer.MAX_VALUE - INDEX_HEADER_SIZE - delimiter.length) / 8)
+            throw new IOException("Index too large to cache");
+
+        ByteBuffer index = ByteBuffer.allocate(INDEX_HEADER_SIZE + delimiter.length + offsets.length * 8);
+
+        index.putInt(INDEX_MAGIC);
+        index.putInt(INDEX_VERSION);
+        index.putLong(contentStore.length());
+        index.putLong(modified);
+        index.putInt(delimiter.length);
+        index.put(delimiter);
+        index.putInt(offsets.length);
+
+        index.asLongBuffer().put(offsets);
+        index.position(0);
+
+        try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (index.hasRemaining())
+                channel.write(index);
+        }
+    }
+}
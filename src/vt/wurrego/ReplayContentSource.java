@@ -0,0 +1,110 @@
+package vt.wurrego;
+
+import vt.wurrego.utils.CommonEnums;
+
+import java.nio.ByteBuffer;
+import java.util.SplittableRandom;
+
+/**
+ * Content source replaying the payloads of a capture
+ *
+ * Payloads are the captured UDP or TCP payloads, in capture order or at random. Replaying with the original timing
+ * also accumulates the capture's gaps between the packets it hands out, for the sender to space its bursts by.
+ *
+ * Created by wurrego on 5/14/17.
+ */
+public class ReplayContentSource implements ContentSource {
+
+    private final ReplayStore replayStore;
+    private final CommonEnums.ReplayMode replayMode;
+    private final SplittableRandom random;
+    private final long replayWrapNanos;
+    private int replayCursor = -1;
+    private long replayDelayNanos;
+
+    /**
+     * ReplayContentSource - replays an indexed capture
+     * @param replayStore - holding at least one packet, closed on close()
+     * @param mode - in order when null
+     * @param random
+     */
+    public ReplayContentSource(ReplayStore replayStore, CommonEnums.ReplayMode mode, SplittableRandom random) {
+
+        this.replayStore = replayStore;
+        this.replayMode = (mode != null) ? mode : CommonEnums.ReplayMode.IN_ORDER;
+        this.random = random;
+
+        // wrapping around the capture waits the capture's mean packet gap
+        int size = replayStore.size();
+        this.replayWrapNanos = (size > 1) ? Math.max(0, (replayStore.getTimestampNanos(size - 1) - replayStore.getTimestampNanos(0)) / (size - 1)) : 0;
+    }
+
+    /**
+     * fill - copies the payload of the next captured packet, truncated to size, into data[offset, ...)
+     */
+    @Override
+    public int fill(byte[] data, int offset, int size) {
+        return replayStore.read(nextReplayPacket(), data, offset, size);
+    }
+
+    /**
+     * fill - copies the payload of the next captured packet, truncated to size, into data[index, ...)
+     */
+    @Override
+    public int fill(ByteBuffer data, int index, int size) {
+        return replayStore.read(nextReplayPacket(), data, index, size);
+    }
+
+    @Override
+    public void close() {
+        replayStore.close();
+    }
+
+    /**
+     * nextReplayPacket - picks the next packet of the capture in the replay mode, replaying with the original timing
+     * accumulates the capture's gap to the following packet
+     * @return int - packet index
+     */
+    private int nextReplayPacket() {
+
+        int size = replayStore.size();
+
+        if (replayMode == CommonEnums.ReplayMode.RANDOM)
+            return random.nextInt(size);
+
+        replayCursor = (replayCursor + 1 < size) ? replayCursor + 1 : 0;
+
+        if (replayMode == CommonEnums.ReplayMode.ORIGINAL_TIMING) {
+            int next = replayCursor + 1;
+            long gapNanos = (next < size) ? replayStore.getTimestampNanos(next) - replayStore.getTimestampNanos(replayCursor) : replayWrapNanos;
+
+            // captures are not always in timestamp order
+            replayDelayNanos += Math.max(0, gapNanos);
+        }
+
+        return replayCursor;
+    }
+
+    /**
+     * takeReplayDelayNanos - capture time between the first packet generated since the previous call and the packet
+     * following the last one, the time to wait before the next burst when replaying with the original timing
+     * @return long - -1 when not replaying with the original timing
+     */
+    public long takeReplayDelayNanos() {
+
+        if (!isTimed())
+            return -1;
+
+        long delayNanos = replayDelayNanos;
+        replayDelayNanos = 0;
+        return delayNanos;
+    }
+
+    /**
+     * isTimed - packets are spaced by the capture's timestamps instead of the configured rate
+     * @return boolean
+     */
+    public boolean isTimed() {
+        return replayMode == CommonEnums.ReplayMode.ORIGINAL_TIMING;
+    }
+}
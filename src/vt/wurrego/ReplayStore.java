@@ -0,0 +1,502 @@
+package vt.wurrego;
+
+import vt.wurrego.utils.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Class for replaying the payloads of a PCAP or PCAPNG capture
+ *
+ * The capture is memory-mapped through a ContentStore and indexed once: the offset, length and timestamp of the
+ * transport payload of every UDP or TCP packet over IPv4/IPv6. The index is cached next to the capture (capture.idx),
+ * keyed by the capture's size and modification time, so later runs skip parsing altogether. Payloads are copied
+ * straight from the mapping into the packet being built.
+ *
+ * Created by wurrego on 5/11/17.
+ */
+public class ReplayStore {
+
+    /**
+     * class parameters
+     */
+    static final String INDEX_SUFFIX = ".idx";
+    private static final int INDEX_MAGIC = 0x50534958;
+    private static final int INDEX_VERSION = 1;
+    private static final int INDEX_HEADER_SIZE = 28;
+
+    private static final int PCAP_MAGIC_MICROSECONDS = 0xA1B2C3D4;
+    private static final int PCAP_MAGIC_NANOSECONDS = 0xA1B23C4D;
+    private static final int PCAPNG_SECTION_HEADER = 0x0A0D0D0A;
+    private static final int PCAPNG_BYTE_ORDER_MAGIC = 0x1A2B3C4D;
+    private static final int PCAPNG_INTERFACE_DESCRIPTION = 1;
+    private static final int PCAPNG_SIMPLE_PACKET = 3;
+    private static final int PCAPNG_ENHANCED_PACKET = 6;
+    private static final int PCAPNG_OPTION_TSRESOL = 9;
+
+    private static final int LINKTYPE_NULL = 0;
+    private static final int LINKTYPE_ETHERNET = 1;
+    private static final int LINKTYPE_RAW = 101;
+    private static final int LINKTYPE_LOOP = 108;
+    private static final int LINKTYPE_LINUX_SLL = 113;
+    private static final int LINKTYPE_IPV4 = 228;
+    private static final int LINKTYPE_IPV6 = 229;
+    private static final int LINKTYPE_LINUX_SLL2 = 276;
+
+    private static final int PROTOCOL_TCP = 6;
+    private static final int PROTOCOL_UDP = 17;
+
+    // enough for ethernet with two VLAN tags, IPv4 or IPv6 and TCP with options
+    private static final int MAX_HEADERS_SIZE = 192;
+
+    private final ContentStore contentStore;
+    private final String TAG;
+
+    // packet index
+    private int count;
+    private long[] offsets = new long[1024];
+    private int[] lengths = new int[1024];
+    private long[] timestamps = new long[1024];
+
+    /**
+     * ReplayStore - maps the provided capture and loads or builds its packet index
+     * @param captureFileName
+     * @throws IOException
+     */
+    public ReplayStore(String captureFileName) throws IOException {
+
+        // debug parameters
+        TAG = " [" + this.getClass().getSimpleName() + " - " + captureFileName + "] ";
+
+        this.contentStore = ContentCache.acquire(captureFileName);
+
+        Path indexFile = Paths.get(captureFileName + INDEX_SUFFIX);
+        long modified;
+
+        try {
+            modified = Files.getLastModifiedTime(Paths.get(captureFileName)).toMillis();
+
+            if (loadIndex(indexFile, modified)) {
+                Logger.log( TAG , "- Loaded index of " + count + " packets" );
+                return;
+            }
+
+            buildIndex();
+        } catch (IOException | RuntimeException e) {
+            // the capture is of no use, let go of its mapping
+            close();
+            throw e;
+        }
+        Logger.log( TAG , "- Indexed " + count + " packets" );
+
+        try {
+            saveIndex(indexFile, modified);
+        } catch (IOException e) {
+            Logger.log( TAG , "- Error caching index to " + indexFile + ".\n" + e );
+        }
+    }
+
+    /**
+     * close - releases the shared mapping of the capture
+     */
+    public void close() {
+        ContentCache.release(contentStore);
+    }
+
+    /**
+     * size - number of replayable packets
+     * @return int
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * getTimestampNanos - capture time of packet in nanoseconds since the epoch
+     * @param packet
+     * @return long
+     */
+    public long getTimestampNanos(int packet) {
+        return timestamps[packet];
+    }
+
+    /**
+     * read - copies the payload of packet, truncated to size, into dst[dstOffset, ...)
+     * @param packet
+     * @param dst
+     * @param dstOffset
+     * @param size
+     * @return int - number of bytes copied
+     */
+    public int read(int packet, byte[] dst, int dstOffset, int size) {
+        size = Math.min(size, lengths[packet]);
+        contentStore.read(offsets[packet], dst, dstOffset, size);
+        return size;
+    }
+
+    /**
+     * read - copies the payload of packet, truncated to size, into dst[dstIndex, ...) using an absolute put
+     * @param packet
+     * @param dst
+     * @param dstIndex
+     * @param size
+     * @return int - number of bytes copied
+     */
+    public int read(int packet, ByteBuffer dst, int dstIndex, int size) {
+        size = Math.min(size, lengths[packet]);
+        contentStore.read(offsets[packet], dst, dstIndex, size);
+        return size;
+    }
+
+    /**
+     * buildIndex - parses the capture, detecting PCAP or PCAPNG from its first word
+     * @throws IOException
+     */
+    private void buildIndex() throws IOException {
+
+        if (contentStore.length() < 24)
+            throw new IOException("Capture too short");
+
+        int magic = contentStore.slice(0, 4).order(ByteOrder.BIG_ENDIAN).getInt(0);
+        int swappedMagic = Integer.reverseBytes(magic);
+
+        if (magic == PCAPNG_SECTION_HEADER)
+            indexPcapng();
+        else if (magic == PCAP_MAGIC_MICROSECONDS || magic == PCAP_MAGIC_NANOSECONDS)
+            indexPcap(ByteOrder.BIG_ENDIAN, magic == PCAP_MAGIC_NANOSECONDS);
+        else if (swappedMagic == PCAP_MAGIC_MICROSECONDS || swappedMagic == PCAP_MAGIC_NANOSECONDS)
+            indexPcap(ByteOrder.LITTLE_ENDIAN, swappedMagic == PCAP_MAGIC_NANOSECONDS);
+        else
+            throw new IOException("Not a PCAP or PCAPNG capture");
+    }
+
+    /**
+     * indexPcap - walks the records of a PCAP capture
+     * @param order - byte order of the capture
+     * @param nanoseconds - record timestamps carry nanoseconds instead of microseconds
+     */
+    private void indexPcap(ByteOrder order, boolean nanoseconds) {
+
+        long length = contentStore.length();
+        int linkType = contentStore.slice(20, 4).order(order).getInt(0) & 0xFFFF;
+        long position = 24;
+
+        while (position + 16 <= length) {
+            ByteBuffer record = contentStore.slice(position, 16).order(order);
+            long seconds = record.getInt(0) & 0xFFFFFFFFL;
+            long fraction = record.getInt(4) & 0xFFFFFFFFL;
+            int capturedLength = record.getInt(8);
+
+            position += 16;
+
+            // truncated capture
+            if (capturedLength < 0 || position + capturedLength > length)
+                break;
+
+            long timestamp = seconds * 1000000000L + (nanoseconds ? fraction : fraction * 1000L);
+            indexFrame(linkType, position, capturedLength, timestamp);
+
+            position += capturedLength;
+        }
+    }
+
+    /**
+     * indexPcapng - walks the blocks of a PCAPNG capture, indexing enhanced and simple packet blocks
+     */
+    private void indexPcapng() {
+
+        long length = contentStore.length();
+        long position = 0;
+        ByteOrder order = ByteOrder.BIG_ENDIAN;
+
+        // per interface of the current section
+        int interfaces = 0;
+        int[] linkTypes = new int[8];
+        long[] unitsPerSecond = new long[8];
+        long lastTimestamp = 0;
+
+        while (position + 12 <= length) {
+            int type = contentStore.slice(position, 4).order(order).getInt(0);
+
+            if (type == PCAPNG_SECTION_HEADER) {
+                int byteOrderMagic = contentStore.slice(position + 8, 4).order(ByteOrder.BIG_ENDIAN).getInt(0);
+                order = (byteOrderMagic == PCAPNG_BYTE_ORDER_MAGIC) ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+                interfaces = 0;
+            }
+
+            int blockLength = contentStore.slice(position + 4, 4).order(order).getInt(0);
+
+            // truncated or corrupt capture
+            if (blockLength < 12 || position + blockLength > length)
+                break;
+
+            long body = position + 8;
+            int bodyLength = blockLength - 12;
+
+            if (type == PCAPNG_INTERFACE_DESCRIPTION && bodyLength >= 8) {
+                if (interfaces == linkTypes.length) {
+                    linkTypes = Arrays.copyOf(linkTypes, interfaces * 2);
+                    unitsPerSecond = Arrays.copyOf(unitsPerSecond, interfaces * 2);
+                }
+
+                linkTypes[interfaces] = contentStore.slice(body, 2).order(order).getShort(0) & 0xFFFF;
+                unitsPerSecond[interfaces] = timestampResolution(body + 8, bodyLength - 8, order);
+                interfaces++;
+
+            } else if (type == PCAPNG_ENHANCED_PACKET && bodyLength >= 20) {
+                ByteBuffer header = contentStore.slice(body, 20).order(order);
+                int interfaceId = header.getInt(0);
+                long ticks = ((header.getInt(4) & 0xFFFFFFFFL) << 32) | (header.getInt(8) & 0xFFFFFFFFL);
+                int capturedLength = Math.min(header.getInt(12), bodyLength - 20);
+
+                if (interfaceId >= 0 && interfaceId < interfaces && capturedLength > 0) {
+                    long units = unitsPerSecond[interfaceId];
+                    lastTimestamp = (ticks / units) * 1000000000L + (ticks % units) * 1000000000L / units;
+                    indexFrame(linkTypes[interfaceId], body + 20, capturedLength, lastTimestamp);
+                }
+
+            } else if (type == PCAPNG_SIMPLE_PACKET && bodyLength >= 4 && interfaces > 0) {
+                // simple packets carry no timestamp, keep the previous one
+                int originalLength = contentStore.slice(body, 4).order(order).getInt(0);
+                int capturedLength = Math.min(originalLength, bodyLength - 4);
+
+                if (capturedLength > 0)
+                    indexFrame(linkTypes[0], body + 4, capturedLength, lastTimestamp);
+            }
+
+            position += blockLength;
+        }
+    }
+
+    /**
+     * timestampResolution - reads the if_tsresol option of an interface description block
+     * @return long - timestamp units per second, microseconds unless the option says otherwise
+     */
+    private long timestampResolution(long options, int optionsLength, ByteOrder order) {
+
+        long end = options + Math.min(optionsLength, ContentStore.MAX_SLICE_SIZE);
+
+        while (options + 4 <= end) {
+            ByteBuffer option = contentStore.slice(options, 4).order(order);
+            int code = option.getShort(0) & 0xFFFF;
+            int valueLength = option.getShort(2) & 0xFFFF;
+
+            if (code == 0)
+                break;
+
+            if (code == PCAPNG_OPTION_TSRESOL && valueLength >= 1 && options + 5 <= end) {
+                int resolution = contentStore.slice(options + 4, 1).get(0);
+                int exponent = Math.min(resolution & 0x7F, 18);
+
+                // high bit set selects a power of two, else a power of ten
+                if ((resolution & 0x80) != 0)
+                    return 1L << Math.min(exponent, 62);
+
+                long units = 1;
+                for (int i = 0; i < exponent; i++)
+                    units *= 10;
+                return units;
+            }
+
+            options += 4 + ((valueLength + 3) & ~3);
+        }
+
+        return 1000000L;
+    }
+
+    /**
+     * indexFrame - finds the transport payload of a captured frame and adds it to the index, frames that are not
+     * UDP or TCP over IPv4/IPv6, later fragments and empty payloads are skipped
+     * @param linkType
+     * @param frame - offset of the frame in the capture
+     * @param capturedLength
+     * @param timestamp
+     */
+    private void indexFrame(int linkType, long frame, int capturedLength, long timestamp) {
+
+        ByteBuffer headers = contentStore.slice(frame, Math.min(capturedLength, MAX_HEADERS_SIZE)).order(ByteOrder.BIG_ENDIAN);
+        int limit = headers.limit();
+
+        // link layer
+        int network;
+        switch (linkType) {
+            case LINKTYPE_ETHERNET:
+                network = 14;
+                if (limit < network)
+                    return;
+                int etherType = headers.getShort(12) & 0xFFFF;
+                while ((etherType == 0x8100 || etherType == 0x88A8) && limit >= network + 4) {
+                    etherType = headers.getShort(network + 2) & 0xFFFF;
+                    network += 4;
+                }
+                if (etherType != 0x0800 && etherType != 0x86DD)
+                    return;
+                break;
+
+            case LINKTYPE_LINUX_SLL:
+                network = 16;
+                break;
+
+            case LINKTYPE_LINUX_SLL2:
+                network = 20;
+                break;
+
+            case LINKTYPE_NULL:
+            case LINKTYPE_LOOP:
+                network = 4;
+                break;
+
+            case LINKTYPE_RAW:
+            case LINKTYPE_IPV4:
+            case LINKTYPE_IPV6:
+                network = 0;
+                break;
+
+            default:
+                return;
+        }
+
+        if (limit < network + 20)
+            return;
+
+        // network layer
+        int version = (headers.get(network) & 0xF0) >> 4;
+        int protocol;
+        int transport;
+        int networkEnd;
+
+        if (version == 4) {
+            int fragmentOffset = headers.getShort(network + 6) & 0x1FFF;
+            if (fragmentOffset != 0)
+                return;
+
+            protocol = headers.get(network + 9) & 0xFF;
+            transport = network + (headers.get(network) & 0x0F) * 4;
+            networkEnd = network + (headers.getShort(network + 2) & 0xFFFF);
+        } else if (version == 6 && limit >= network + 40) {
+            protocol = headers.get(network + 6) & 0xFF;
+            transport = network + 40;
+            networkEnd = transport + (headers.getShort(network + 4) & 0xFFFF);
+        } else {
+            return;
+        }
+
+        // transport layer
+        int payload;
+        int payloadEnd = Math.min(networkEnd, capturedLength);
+
+        if (protocol == PROTOCOL_UDP && limit >= transport + 8) {
+            payload = transport + 8;
+            payloadEnd = Math.min(payloadEnd, transport + (headers.getShort(transport + 4) & 0xFFFF));
+        } else if (protocol == PROTOCOL_TCP && limit >= transport + 20) {
+            payload = transport + ((headers.get(transport + 12) & 0xF0) >> 4) * 4;
+        } else {
+            return;
+        }
+
+        int payloadLength = Math.min(payloadEnd - payload, ContentStore.MAX_SLICE_SIZE);
+        if (payloadLength <= 0)
+            return;
+
+        add(frame + payload, payloadLength, timestamp);
+    }
+
+    private void add(long offset, int length, long timestamp) {
+
+        if (count == offsets.length) {
+            offsets = Arrays.copyOf(offsets, count * 2);
+            lengths = Arrays.copyOf(lengths, count * 2);
+            timestamps = Arrays.copyOf(timestamps, count * 2);
+        }
+
+        offsets[count] = offset;
+        lengths[count] = length;
+        timestamps[count] = timestamp;
+        count++;
+    }
+
+    /**
+     * loadIndex - loads the cached index if it was built from the capture as it is now
+     * @param indexFile
+     * @param modified - modification time of the capture
+     * @return boolean - index was loaded
+     */
+    private boolean loadIndex(Path indexFile, long modified) {
+
+        if (!Files.isRegularFile(indexFile))
+            return false;
+
+        try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+
+            if (channel.size() < INDEX_HEADER_SIZE)
+                return false;
+
+            MappedByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (index.getInt() != INDEX_MAGIC || index.getInt() != INDEX_VERSION
+                    || index.getLong() != contentStore.length() || index.getLong() != modified)
+                return false;
+
+            int entries = index.getInt();
+            if (entries < 0 || channel.size() != INDEX_HEADER_SIZE + entries * 20L)
+                return false;
+
+            offsets = new long[entries];
+            lengths = new int[entries];
+            timestamps = new long[entries];
+
+            index.asLongBuffer().get(offsets);
+            index.position(index.position() + entries * 8);
+            index.asIntBuffer().get(lengths);
+            index.position(index.position() + entries * 4);
+            index.asLongBuffer().get(timestamps);
+
+            count = entries;
+            return true;
+
+        } catch (IOException e) {
+            Logger.log( TAG , "- Error loading index " + indexFile + ".\n" + e );
+            return false;
+        }
+    }
+
+    /**
+     * saveIndex - caches the index next to the capture
+     * @param indexFile
+     * @param modified - modification time of the capture
+     * @throws IOException
+     */
+    private void saveIndex(Path indexFile, long modified) throws IOException {
+
+        if (count > (Integer.MAX_VALUE - INDEX_HEADER_SIZE) / 20)
+            throw new IOException("Index too large to cache");
+
+        ByteBuffer index = ByteBuffer.allocate(INDEX_HEADER_SIZE + count * 20);
+
+        index.putInt(INDEX_MAGIC);
+        index.putInt(INDEX_VERSION);
+        index.putLong(contentStore.length());
+        index.putLong(modified);
+        index.putInt(count);
+
+        index.asLongBuffer().put(offsets, 0, count);
+        index.position(index.position() + count * 8);
+        index.asIntBuffer().put(lengths, 0, count);
+        index.position(index.position() + count * 4);
+        index.asLongBuffer().put(timestamps, 0, count);
+        index.position(0);
+
+        try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (index.hasRemaining())
+                channel.write(index);
+        }
+    }
+}
@@ -1,28 +1,41 @@
 package vt.wurrego;
 
 import org.apache.commons.math3.linear.ArrayRealVector;
+import org.apache.commons.math3.linear.LUDecomposition;
 import org.apache.commons.math3.linear.MatrixUtils;
 import org.apache.commons.math3.linear.RealMatrix;
 import org.apache.commons.math3.linear.RealVector;
 import vt.wurrego.utils.CommonEnums;
 import vt.wurrego.utils.Logger;
 
-import java.util.Random;
+import java.util.SplittableRandom;
 
 /**
  * Created by wurrego on 5/7/17.
  */
 public class StateMachine {
+    private static final CommonEnums.StateStatus[] STATES = CommonEnums.StateStatus.values();
+
     private CommonEnums.StateStatus state;
     private RealMatrix probTransitionMatrix;
-    private RealMatrix state_OFF_OneHot;
-    private RealMatrix state_IDLE_OneHot;
-    private RealMatrix state_LOW_OneHot;
-    private RealMatrix state_HIGH_OneHot;
+    private double[][] transitionData;
+    private double[][] cumulativeTransitions;
+    private double[] stationaryDistribution;
     private int number_States;
+    private SplittableRandom random;
     private String TAG;
 
     public StateMachine() {
+        this(new SplittableRandom());
+    }
+
+    /**
+     * StateMachine - state machine drawing its transitions from random
+     * @param random - not shared with other threads
+     */
+    public StateMachine(SplittableRandom random) {
+
+        this.random = random;
 
         // debug parameters
         TAG = " [" + this.getClass().getSimpleName() + "] ";
@@ -32,21 +45,57 @@ public class StateMachine {
         // Create the state matrices
         this.number_States = 4;
 
-        double[][] state1Data = { {1.0, 0.0, 0.0, 0.0} };
-        this.state_OFF_OneHot = MatrixUtils.createRealMatrix(state1Data);
+        // Create the transition probability matrix
+        double[][] pData = { {0.7, 0.3, 0.0, 0.0}, {0.05, 0.78, 0.16, 0.01}, {0.0, 0.2, 0.75, 0.05}, {0.0, 0.05, 0.2, 0.75}};
+        this.probTransitionMatrix = MatrixUtils.createRealMatrix(pData);
+        this.transitionData = probTransitionMatrix.getData();
+
+        // precompile each row into a cumulative table so sampling is a single uniform draw and a scan
+        this.cumulativeTransitions = new double[number_States][number_States];
+        for (int i = 0; i < number_States; i++) {
+            double cumulative = 0.0;
+            for (int j = 0; j < number_States; j++) {
+                cumulative += transitionData[i][j];
+                cumulativeTransitions[i][j] = cumulative;
+            }
+            // guard against rows not summing to exactly 1.0
+            cumulativeTransitions[i][number_States - 1] = Double.POSITIVE_INFINITY;
+        }
 
-        double[][] state2Data = { {0.0, 1.0, 0.0, 0.0} };
-        this.state_IDLE_OneHot = MatrixUtils.createRealMatrix(state2Data);
+        this.stationaryDistribution = solveStationaryDistribution();
+    }
 
-        double[][] state3Data = { {0.0, 0.0, 1.0, 0.0} };
-        this.state_LOW_OneHot = MatrixUtils.createRealMatrix(state3Data);
+    /**
+     * solveStationaryDistribution - solves pi * P = pi with sum(pi) = 1
+     * @return double[]
+     */
+    private double[] solveStationaryDistribution() {
 
-        double[][] state4Data = { {0.0, 0.0, 0.0, 1.0} };
-        this.state_HIGH_OneHot = MatrixUtils.createRealMatrix(state4Data);
+        // (P^T - I) pi = 0, with the last equation replaced by the normalisation constraint
+        RealMatrix a = probTransitionMatrix.transpose().subtract(MatrixUtils.createRealIdentityMatrix(number_States));
+        RealVector b = new ArrayRealVector(number_States);
 
-        // Create the transition probability matrix
-        double[][] pData = { {0.7, 0.3, 0.0, 0.0}, {0.05, 0.78, 0.16, 0.01}, {0.0, 0.2, 0.75, 0.05}, {0.0, 0.05, 0.2, 0.75}};
-        this.probTransitionMatrix = MatrixUtils.createRealMatrix(pData);
+        for (int j = 0; j < number_States; j++)
+            a.setEntry(number_States - 1, j, 1.0);
+        b.setEntry(number_States - 1, 1.0);
+
+        return new LUDecomposition(a).getSolver().solve(b).toArray();
+    }
+
+    /**
+     * get_onTime - long run fraction of time on (LOW or HIGH), from the stationary distribution
+     * @return double
+     */
+    public double get_onTime() {
+        return stationaryDistribution[CommonEnums.StateStatus.LOW.ordinal()] + stationaryDistribution[CommonEnums.StateStatus.HIGH.ordinal()];
+    }
+
+    /**
+     * get_offTime - long run fraction of time off (OFF or IDLE), from the stationary distribution
+     * @return double
+     */
+    public double get_offTime() {
+        return stationaryDistribution[CommonEnums.StateStatus.OFF.ordinal()] + stationaryDistribution[CommonEnums.StateStatus.IDLE.ordinal()];
     }
 
     /**
@@ -55,13 +104,9 @@ public class StateMachine {
      * @return
      */
     public double  get_onTime(int iterations) {
-        double onTime = 0.0;
+        double[] pDist = distributionFromOff(iterations);
 
-        RealMatrix pDist = state_OFF_OneHot.multiply(probTransitionMatrix.power(iterations));
-
-        onTime = pDist.getEntry(0,2) + pDist.getEntry(0,3);
-
-        return onTime;
+        return pDist[CommonEnums.StateStatus.LOW.ordinal()] + pDist[CommonEnums.StateStatus.HIGH.ordinal()];
     }
 
     /**
@@ -70,13 +115,45 @@ public class StateMachine {
      * @return double
      */
     public double  get_offTime(int iterations) {
-        double offTime = 0.0;
+        double[] pDist = distributionFromOff(iterations);
+
+        return pDist[CommonEnums.StateStatus.OFF.ordinal()] + pDist[CommonEnums.StateStatus.IDLE.ordinal()];
+    }
 
-        RealMatrix pDist = state_OFF_OneHot.multiply(probTransitionMatrix.power(iterations));
+    /**
+     * get_stationaryDistribution - long run probability of each state, indexed by state value
+     * @return double[]
+     */
+    public double[] get_stationaryDistribution() {
+        return stationaryDistribution.clone();
+    }
 
-        offTime = pDist.getEntry(0,0) + pDist.getEntry(0,1);
+    /**
+     * distributionFromOff - state distribution after # of iterations starting from OFF, propagated row vector by
+     * matrix instead of raising the matrix to the power
+     * @param iterations
+     * @return double[]
+     */
+    private double[] distributionFromOff(int iterations) {
+        double[] pDist = new double[number_States];
+        double[] next = new double[number_States];
+
+        pDist[CommonEnums.StateStatus.OFF.ordinal()] = 1.0;
+
+        for (int n = 0; n < iterations; n++) {
+            for (int j = 0; j < number_States; j++) {
+                double p = 0.0;
+                for (int i = 0; i < number_States; i++)
+                    p += pDist[i] * transitionData[i][j];
+                next[j] = p;
+            }
+
+            double[] swap = pDist;
+            pDist = next;
+            next = swap;
+        }
 
-        return offTime;
+        return pDist;
     }
 
     /**
@@ -95,64 +172,24 @@ public class StateMachine {
     }
 
     /**
-     * nextState - decides next state
+     * nextState - decides next state by sampling the current state's row of the transition matrix
      * @return CommonEnums.StateMachine
      */
     public CommonEnums.StateStatus get_nextState() {
-        CommonEnums.StateStatus nextState = this.state;
-        RealMatrix pDist;
-
-        switch (this.state) {
-
-            case OFF:
-                pDist = state_OFF_OneHot.multiply(probTransitionMatrix.power(1));
-                break;
-
-            case IDLE:
-                pDist = state_IDLE_OneHot.multiply(probTransitionMatrix.power(1));
-                break;
 
-            case LOW:
-                pDist = state_LOW_OneHot.multiply(probTransitionMatrix.power(1));
-                break;
-
-            case HIGH:
-                pDist = state_HIGH_OneHot.multiply(probTransitionMatrix.power(1));
-                break;
-
-
-            default:
-                Logger.log( TAG , "System in Unknown State." );
-                nextState = CommonEnums.StateStatus.OFF;
-                return nextState;
+        if (this.state == null) {
+            Logger.log( TAG , "System in Unknown State." );
+            return CommonEnums.StateStatus.OFF;
         }
 
-        // roll dice and get next state probabilities
-        RealVector diceRoll = generateRandomVector(number_States);
-        RealVector p_nextState = diceRoll.ebeMultiply(pDist.getRowVector(0));
-        int nextStateIndex = p_nextState.getMaxIndex();
-
-        nextState = CommonEnums.StateStatus.getValue(nextStateIndex);
+        // roll dice against the cumulative transition probabilities
+        double[] row = cumulativeTransitions[this.state.ordinal()];
+        double diceRoll = random.nextDouble();
 
-        return nextState;
-    }
-
-    /**
-     * generateRandomVector - creates vector of specified size containing random ints
-     * @param size
-     * @return
-     */
-    private RealVector generateRandomVector(int size){
-        RealVector randVector = new ArrayRealVector(size);
-
-        Random random = new Random();
-
-        for (int i = 0; i < size; i++)
-        {
-            randVector.setEntry(i, random.nextInt(1000));
-
-        }
+        int nextStateIndex = 0;
+        while (diceRoll >= row[nextStateIndex])
+            nextStateIndex++;
 
-        return randVector;
+        return STATES[nextStateIndex];
     }
 }
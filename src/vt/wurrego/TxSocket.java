@@ -1,52 +1,132 @@
 package vt.wurrego;
 
-import com.google.common.util.concurrent.RateLimiter;
 import vt.wurrego.utils.Logger;
 
+import vt.wurrego.utils.CommonEnums;
+import vt.wurrego.utils.HeaderTemplate;
+import vt.wurrego.utils.FlowMetrics;
+import vt.wurrego.utils.Pacer;
+import vt.wurrego.utils.PcapWriter;
+import vt.wurrego.utils.SequenceHeader;
+import vt.wurrego.utils.Threads;
+
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.util.Random;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Class for handling sending of data
+ *
+ * A TxSocket lives as long as its ContentGenerator. It keeps its socket and buffers open across Markov state
+ * transitions and only switches the RateProfile it sends with, a null profile pauses it. Being the only sender of
+ * its flow, and spacing the first burst after a resume from the last burst before the pause, the flow never
+ * overshoots its rate on a transition.
+ *
  * Created by wurrego on 5/7/17.
  */
-public class TxSocket extends Thread{
+public class TxSocket implements Runnable {
 
-    private boolean running;
+    private static final AtomicInteger socketCount = new AtomicInteger();
+    private volatile boolean running;
+    private Thread thread;
+    private String name;
     private DatagramSocket txSocket;
-    private InetAddress destIP;
-    private int destPort;
-    private int mtuBytes;
-    private int maxPacketsPerSecond;
-    private boolean variableRate;
+    private DatagramChannel txChannel;
+    private PcapWriter pcapWriter;
+    private DatagramPacket ringPacket;
+    private boolean unpaced;
+    private volatile Destinations destinations;
+    private final Object destinationsLock = new Object();
+    private CommonEnums.TxMode txMode;
     private boolean debugLogging;
     private int debugLevel;
     private String TAG;
+    private final Logger.RateLimit runLogLimit = new Logger.RateLimit(10);
+    private final Logger.RateLimit sendLogLimit = new Logger.RateLimit(10);
+    private final Logger.RateLimit errorLogLimit = new Logger.RateLimit(10);
+    private final Logger.RateLimit backoffLogLimit = new Logger.RateLimit(1);
     private String userProvidedName;
     private ContentGenerator parent;
     private int packetsSent_count;
-    private boolean varyPacketSize;
+    private FlowMetrics flowMetrics;
+    private FlowMetrics.SocketMetrics socketMetrics;
+    private long lastBurstNanos;
+    private long lastGapNanos;
+
+    // sequence header stamped into every packet as it is sent
+    private boolean sequenceHeader;
+    private boolean udpHeader;
+    private int sequenceOffset;
+    private long sequence;
+
+    // backpressure, how a full send buffer is handled and how far an adaptive sender backed off
+    private static final long DEFAULT_STALL_NANOS = 1000000L;
+    private static final long RETRY_PARK_NANOS = 50000L;
+    private static final long MAX_RETRY_PARK_NANOS = 1000000L;
+    private static final double MIN_RATE_SCALE = 1.0 / 64;
+    private static final double RATE_RECOVERY_PER_SECOND = 0.5;
+    private CommonEnums.BackpressurePolicy backpressurePolicy;
+    private long stallNanos;
+    private boolean ratePaced;
+    private boolean pressured;
+    private double rateScale = 1.0;
+    private long lastAdaptNanos;
+
+    // rate and size profile, switched by the generator on state transitions, null while paused
+    private volatile RateProfile profile;
+    private RateProfile activeProfile;
+
+    // pacing against absolute burst deadlines, on the socket's own thread or on the scheduler
+    private static final long MAX_INTERVAL_NANOS = 3600L * 1000000000L;
+    private Pacer pacer;
+    private double currentRate;
+    private SplittableRandom random;
+    private FlowScheduler scheduler;
+    private Runnable scheduledBurst;
+    private final AtomicBoolean burstScheduled = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    // latest firing handed to the scheduler, replaced under the lock so shutdown() can pull a distant one forward
+    private final Object scheduleLock = new Object();
+    private ScheduledFuture<?> pendingBurst;
+    private final CountDownLatch terminated = new CountDownLatch(1);
 
     // Content Descriptor
     private ContentInfo.ContentDescriptors contentDescriptor;
 
 
     /**
-     * TxSocket - constructor for managing UDP socket for transmitting datagrams
+     * TxSocket - constructor for managing UDP socket for transmitting datagrams, starts paused
      * @param parent
      * @param cd
      * @param debugLevel
+     * @param random - random stream for variable rate, not shared with other threads
      */
-    public TxSocket(ContentGenerator parent, ContentInfo.ContentDescriptors cd, int debugLevel) {
+    public TxSocket(ContentGenerator parent, ContentInfo.ContentDescriptors cd, int debugLevel, SplittableRandom random) {
 
         this.userProvidedName = cd.name;
         this.parent = parent;
 
         // debug parameters
-        TAG = " [" + this.getClass().getSimpleName() + " - " + this.getName() + " - " + userProvidedName + "] ";
+        this.name = this.getClass().getSimpleName() + "-" + socketCount.getAndIncrement();
+        TAG = " [" + name + " - " + userProvidedName + "] ";
         this.debugLevel = debugLevel;
         debugLogging = false;
 
@@ -57,30 +137,277 @@ public class TxSocket extends Thread{
 
         // init
         this.running = true;
-        this.mtuBytes = cd.packet_mtu_size_bytes;
-        this.varyPacketSize = cd.packet_variable_size;
-        this.maxPacketsPerSecond = cd.max_packets_per_second;
-        this.variableRate = cd.variable_rate;
+        this.contentDescriptor = cd;
+        this.txMode = cd.tx_mode;
+        this.profile = null;
+        this.random = random;
+        this.pacer = new Pacer(cd.pacer_spin_micros * 1000L);
         packetsSent_count = 0;
+        this.backpressurePolicy = (cd.backpressure_policy != null) ? cd.backpressure_policy : CommonEnums.BackpressurePolicy.BLOCK;
+        this.stallNanos = (cd.send_stall_micros > 0) ? cd.send_stall_micros * 1000L : DEFAULT_STALL_NANOS;
+
+        // statistics
+        flowMetrics = parent.getMetrics();
+
+        // sequence header behind the custom header, if any
+        sequenceHeader = parent.hasSequenceHeader();
+        udpHeader = cd.udp_packet;
+        sequenceOffset = udpHeader ? HeaderTemplate.HEADER_SIZE : 0;
 
         try {
-            txSocket = new DatagramSocket();
-            this.destIP = InetAddress.getByName(cd.dest_ip);
-            this.destPort = cd.dest_port;
+            if (txMode == CommonEnums.TxMode.PCAP) {
+                // packets without a custom header carry no IP header, so they can not be stored as raw IP
+                socketMetrics = flowMetrics.socket(name);
+                pcapWriter = new PcapWriter(cd.pcap_file_path, cd.udp_packet ? PcapWriter.LINKTYPE_RAW : PcapWriter.LINKTYPE_USER0);
+                unpaced = cd.pcap_unpaced;
+            } else {
+                // every packet goes out to each destination from one socket, counted per destination
+                destinations = register(resolveAddresses(cd));
+
+                if (txMode == CommonEnums.TxMode.CHANNEL) {
+                    txChannel = DatagramChannel.open();
+                    setMulticastOptions(txChannel, cd);
+                    setSendOptions(txChannel, cd);
+
+                    // a full send buffer returns at once instead of blocking the sender
+                    if (backpressurePolicy == CommonEnums.BackpressurePolicy.DROP)
+                        txChannel.configureBlocking(false);
+                } else {
+                    txSocket = new DatagramSocket();
+                    setMulticastOptions(txSocket, cd);
+                    setSendOptions(txSocket, cd);
+                }
+            }
 
         } catch (IOException e) {
-            e.printStackTrace();
+            Logger.log( Logger.Level.ERROR, TAG , "- Error opening sink.\n" + e );
         }
 
+        // unpaced captures and replays with the original timing have no target rate
+        ratePaced = !unpaced && !parent.isReplayTimed();
+
 
     }
 
-    @Override
-    public void interrupt() {
+    /**
+     * resolveAddresses - resolves the descriptor's destinations, the single dest_ip and dest_port when none are listed
+     * @param cd
+     * @return InetSocketAddress[]
+     * @throws IOException
+     */
+    private static InetSocketAddress[] resolveAddresses(ContentInfo.ContentDescriptors cd) throws IOException {
+
+        List<ContentInfo.Destination> list = cd.destinations;
+        if (list == null || list.isEmpty()) {
+            ContentInfo.Destination destination = new ContentInfo.Destination();
+            destination.dest_ip = cd.dest_ip;
+            destination.dest_port = cd.dest_port;
+            list = Collections.singletonList(destination);
+        }
+
+        InetSocketAddress[] addresses = new InetSocketAddress[list.size()];
+
+        for (int i = 0; i < list.size(); i++) {
+            ContentInfo.Destination destination = list.get(i);
+            addresses[i] = new InetSocketAddress(InetAddress.getByName(destination.dest_ip), destination.dest_port);
+        }
+
+        return addresses;
+    }
+
+    /**
+     * register - pairs resolved addresses with their metrics, destinations already registered keep theirs
+     * @param addresses
+     * @return Destinations
+     */
+    private Destinations register(InetSocketAddress[] addresses) {
+
+        FlowMetrics.SocketMetrics[] metrics = new FlowMetrics.SocketMetrics[addresses.length];
+
+        for (int i = 0; i < addresses.length; i++)
+            metrics[i] = flowMetrics.socket(name + " -> " + addresses[i].getAddress().getHostAddress() + ":" + addresses[i].getPort());
+
+        return new Destinations(addresses, metrics);
+    }
+
+    /**
+     * resolveDestinations - resolves the descriptor's destinations for a later retarget(), name lookups may block so
+     * this is called without holding any lock the sender or the state machine needs, nothing is registered yet
+     * @param cd
+     * @return InetSocketAddress[] - null when the socket has no destinations or they could not be resolved
+     */
+    public InetSocketAddress[] resolveDestinations(ContentInfo.ContentDescriptors cd) {
+
+        if (destinations == null || closed.get())
+            return null;
+
+        try {
+            return resolveAddresses(cd);
+        } catch (IOException e) {
+            Logger.log( Logger.Level.ERROR, TAG , "- Error resolving destinations, keeping the previous ones.\n" + e );
+            return null;
+        }
+    }
+
+    /**
+     * retarget - swaps in resolved destinations, a burst in progress finishes on the ones it started with and
+     * destinations kept keep their metrics, a closed socket registers nothing
+     * @param addresses - from resolveDestinations()
+     */
+    public void retarget(InetSocketAddress[] addresses) {
+
+        Destinations previous;
+        Destinations next;
+
+        synchronized (destinationsLock) {
+            previous = destinations;
+            if (previous == null || addresses == null || closed.get())
+                return;
+
+            next = register(addresses);
+            destinations = next;
+
+            // metrics of the destinations dropped
+            for (FlowMetrics.SocketMetrics destination : previous.metrics)
+                if (!Arrays.asList(next.metrics).contains(destination))
+                    flowMetrics.removeSocket(destination.getName());
+        }
+
+        if (!Arrays.equals(previous.addresses, next.addresses))
+            Logger.log( TAG , "- Sending to " + Arrays.toString(next.addresses) );
+    }
+
+    /**
+     * setMulticastOptions - applies the descriptor's multicast TTL and outgoing interface, if set
+     * @param channel - DatagramSocket or DatagramChannel
+     * @param cd
+     * @throws IOException
+     */
+    private void setMulticastOptions(Object channel, ContentInfo.ContentDescriptors cd) throws IOException {
+
+        NetworkInterface multicastInterface = null;
+        if (cd.multicast_interface != null) {
+            multicastInterface = NetworkInterface.getByName(cd.multicast_interface);
+            if (multicastInterface == null)
+                Logger.log( Logger.Level.WARN, TAG , "- Unknown multicast interface " + cd.multicast_interface );
+        }
+
+        if (channel instanceof DatagramChannel) {
+            DatagramChannel datagramChannel = (DatagramChannel) channel;
+            if (cd.multicast_ttl > 0)
+                datagramChannel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, cd.multicast_ttl);
+            if (multicastInterface != null)
+                datagramChannel.setOption(StandardSocketOptions.IP_MULTICAST_IF, multicastInterface);
+        } else {
+            DatagramSocket datagramSocket = (DatagramSocket) channel;
+            if (cd.multicast_ttl > 0)
+                datagramSocket.setOption(StandardSocketOptions.IP_MULTICAST_TTL, cd.multicast_ttl);
+            if (multicastInterface != null)
+                datagramSocket.setOption(StandardSocketOptions.IP_MULTICAST_IF, multicastInterface);
+        }
+    }
+
+    /**
+     * setSendOptions - applies the descriptor's send buffer size and traffic class, if set
+     * @param channel - DatagramSocket or DatagramChannel
+     * @param cd
+     * @throws IOException
+     */
+    private void setSendOptions(Object channel, ContentInfo.ContentDescriptors cd) throws IOException {
+
+        int sendBufferBytes;
+
+        if (channel instanceof DatagramChannel) {
+            DatagramChannel datagramChannel = (DatagramChannel) channel;
+            if (cd.socket_send_buffer_bytes > 0)
+                datagramChannel.setOption(StandardSocketOptions.SO_SNDBUF, cd.socket_send_buffer_bytes);
+            if (cd.traffic_class > 0)
+                datagramChannel.setOption(StandardSocketOptions.IP_TOS, cd.traffic_class);
+            sendBufferBytes = datagramChannel.getOption(StandardSocketOptions.SO_SNDBUF);
+        } else {
+            DatagramSocket datagramSocket = (DatagramSocket) channel;
+            if (cd.socket_send_buffer_bytes > 0)
+                datagramSocket.setOption(StandardSocketOptions.SO_SNDBUF, cd.socket_send_buffer_bytes);
+            if (cd.traffic_class > 0)
+                datagramSocket.setOption(StandardSocketOptions.IP_TOS, cd.traffic_class);
+            sendBufferBytes = datagramSocket.getOption(StandardSocketOptions.SO_SNDBUF);
+        }
+
+        // the kernel may round or double the requested size
+        if (cd.socket_send_buffer_bytes > 0 || cd.traffic_class > 0)
+            Logger.log( TAG , "- Send buffer " + sendBufferBytes + " bytes, traffic class " + cd.traffic_class + ", " + backpressurePolicy + " on backpressure" );
+    }
+
+    /**
+     * start - runs the socket on a thread of its own
+     * @param virtual - use a virtual thread when the JVM supports it
+     */
+    public void start(boolean virtual) {
+        thread = Threads.newThread(this, name, virtual);
+        thread.start();
+    }
+
+    /**
+     * setProfile - switches the rate and size profile, takes effect from the next burst
+     * @param newProfile - null pauses sending
+     */
+    public void setProfile(RateProfile newProfile) {
+
+        this.profile = newProfile;
+
+        if (newProfile == null)
+            return;
+
+        if (thread != null)
+            LockSupport.unpark(thread);
+
+        if (scheduler != null)
+            scheduleBurst();
+    }
+
+    public RateProfile getProfile() {
+        return profile;
+    }
+
+    /**
+     * shutdown - stops sending, the socket is closed by its own thread or, on the scheduler, by a firing pulled
+     * forward to now
+     */
+    public void shutdown() {
         if (debugLogging) {  Logger.log( TAG , "- Interrupted" ); }
 
         this.running = false;
 
+        // interrupting a FileChannel write closes the file, a capture is woken by unparking instead
+        if (thread != null) {
+            if (pcapWriter != null)
+                LockSupport.unpark(thread);
+            else
+                thread.interrupt();
+        }
+
+        if (scheduler != null) {
+            // a pending firing may be up to MAX_INTERVAL_NANOS away, one already running reschedules itself for now
+            synchronized (scheduleLock) {
+                if (pendingBurst != null && pendingBurst.cancel(false))
+                    pendingBurst = scheduler.schedule(scheduledBurst, 0);
+            }
+
+            // paused, no firing pending
+            scheduleBurst();
+        }
+    }
+
+    /**
+     * awaitTermination - waits for the socket thread, or on the scheduler for the socket, to be closed after shutdown()
+     * @param timeoutMillis
+     * @throws InterruptedException
+     */
+    public void awaitTermination(long timeoutMillis) throws InterruptedException {
+        if (thread != null)
+            thread.join(timeoutMillis);
+        else if (scheduler != null)
+            terminated.await(timeoutMillis, TimeUnit.MILLISECONDS);
     }
 
     @Override
@@ -88,89 +415,601 @@ public class TxSocket extends Thread{
 
         if (debugLogging) {   Logger.log( TAG , "- Start" ); }
 
-        // rateLimiter will uniformely distribute the packet sends per second
-        RateLimiter rateLimiter = RateLimiter.create(maxPacketsPerSecond);
+        while(running && !Thread.currentThread().isInterrupted())
+        {
+            RateProfile p = profile;
 
+            // paused, wait for the next profile
+            if (p == null) {
+                deactivate();
+                LockSupport.park(this);
+                continue;
+            }
 
-        while(running)
-        {
-            if (debugLogging) {   Logger.log( TAG , "- Running" ); }
+            if (p != activeProfile)
+                activate(p);
+
+            if (debugLogging) {   Logger.log( runLogLimit, Logger.Level.DEBUG, TAG , () -> "- Running" ); }
+
+            // wait for the deadline of the burst, unpaced captures only stamp it
+            if (!unpaced) {
+                long lateness = pacer.await();
+
+                // woken early, paused or switched while waiting, never send with a stale profile
+                if (lateness < 0 || profile != p || !running)
+                    continue;
+
+                flowMetrics.recordPacingJitter(lateness);
+            }
+
+            sendBurst(p);
+            updateRate(p);
+            pacer.advance(intervalNanos(p));
+        }
+
+        close();
+
+        if (debugLogging) {   Logger.log( TAG , "- Finished" ); }
+    }
+
+    /**
+     * activate - starts sending with a new profile, switching between sending states keeps the current deadline,
+     * resuming never sends the first burst earlier than the deadline following the last burst before the pause, so
+     * the deadlines of unpaced captures, running ahead of the clock, stay monotonic
+     * @param p
+     */
+    private void activate(RateProfile p) {
+
+        currentRate = p.maxPacketsPerSecond;
+
+        // the pause before resuming is not a send gap
+        if (activeProfile == null) {
+            pacer.reset(Math.max(System.nanoTime(), pacer.getDeadline()));
+            lastGapNanos = 0;
+        }
+
+        activeProfile = p;
+        flowMetrics.setTargetRate(ratePaced ? currentRate : 0);
+    }
+
+    /**
+     * deactivate - pauses sending, the flow has no target rate until the next profile
+     */
+    private void deactivate() {
+
+        if (activeProfile == null)
+            return;
+
+        activeProfile = null;
+        flowMetrics.setTargetRate(0);
+    }
+
+    /**
+     * intervalNanos - time between burst deadlines at the current rate, or the capture's own gaps when replaying
+     * with the original timing
+     * @param p
+     * @return long
+     */
+    private long intervalNanos(RateProfile p) {
+
+        long replayNanos = parent.offerReplayDelayNanos();
+        if (replayNanos >= 0)
+            return Math.min(replayNanos, MAX_INTERVAL_NANOS);
+
+        return (long) Math.min(p.burstSize * 1e9 / (currentRate * rateScale), MAX_INTERVAL_NANOS);
+    }
+
+    /**
+     * schedule - runs the socket on the scheduler instead of its own thread, each firing sends one burst and
+     * reschedules the socket at the deadline of the next burst, a paused socket is not scheduled at all
+     * @param scheduler
+     */
+    public void schedule(FlowScheduler scheduler) {
+
+        if (debugLogging) {   Logger.log( TAG , "- Start" ); }
+
+        scheduledBurst = new Runnable() {
+            @Override
+            public void run() {
+                fireScheduledBurst();
+            }
+        };
+        this.scheduler = scheduler;
+
+        if (profile != null)
+            scheduleBurst();
+    }
+
+    /**
+     * scheduleBurst - schedules the next firing unless one is already pending
+     */
+    private void scheduleBurst() {
+        if (burstScheduled.compareAndSet(false, true))
+            scheduleNext(0);
+    }
+
+    /**
+     * scheduleNext - hands the next firing to the scheduler, right away once the socket was shut down
+     * @param delayNanos
+     */
+    private void scheduleNext(long delayNanos) {
+        synchronized (scheduleLock) {
+            pendingBurst = scheduler.schedule(scheduledBurst, running ? delayNanos : 0);
+        }
+    }
+
+    /**
+     * fireScheduledBurst - sends one burst and reschedules at the deadline of the next one, the scheduler wakes the
+     * socket the pacer's spin time early and the pacer spins the rest
+     */
+    private void fireScheduledBurst() {
+
+        RateProfile p = profile;
+
+        if (!running || p == null) {
+            burstScheduled.set(false);
+            deactivate();
+
+            if (!running) {
+                close();
+                if (debugLogging) {   Logger.log( TAG , "- Finished" ); }
+            } else if (profile != null) {
+                // resumed while stopping
+                scheduleBurst();
+            }
+            return;
+        }
+
+        if (p != activeProfile)
+            activate(p);
+
+        if (unpaced) {
+            sendBurst(p);
+            updateRate(p);
+            pacer.advance(intervalNanos(p));
+
+            scheduleNext(0);
+            return;
+        }
+
+        long earlyNanos = pacer.getDeadline() - System.nanoTime() - pacer.getSpinNanos();
+        if (earlyNanos > 0) {
+            scheduleNext(earlyNanos);
+            return;
+        }
+
+        long lateness = pacer.await();
+        if (lateness < 0) {
+            scheduleNext(pacer.getDeadline() - System.nanoTime() - pacer.getSpinNanos());
+            return;
+        }
+
+        flowMetrics.recordPacingJitter(lateness);
+        sendBurst(p);
+        updateRate(p);
+        pacer.advance(intervalNanos(p));
+
+        scheduleNext(pacer.getDeadline() - System.nanoTime() - pacer.getSpinNanos());
+    }
+
+    /**
+     * sendBurst - sends burstSize packets back-to-back
+     * @param p
+     */
+    private void sendBurst(RateProfile p) {
+
+        long burstNanos = System.nanoTime();
+        int burstSent = 0;
+
+        if (lastGapNanos != 0)
+            flowMetrics.recordSendGap(burstNanos - lastGapNanos);
+        lastGapNanos = burstNanos;
+
+        for (int i = 0; i < p.burstSize && running; i++) {
+            boolean sent;
+
+            if (txMode == CommonEnums.TxMode.CHANNEL)
+                sent = sendChannel(p);
+            else if (txMode == CommonEnums.TxMode.PCAP)
+                sent = sendPcap(p);
+            else
+                sent = sendSocket(p);
+
+            if (sent)
+                burstSent = burstSent + 1;
+        }
+
+        if (p.burstSize > 1 && lastBurstNanos != 0)
+            flowMetrics.recordBurst(burstSent, burstNanos - lastBurstNanos);
+        lastBurstNanos = burstNanos;
+
+        if (backpressurePolicy == CommonEnums.BackpressurePolicy.ADAPTIVE && ratePaced)
+            adaptRate();
+        pressured = false;
+    }
+
+    /**
+     * adaptRate - halves the rate after a burst the kernel pushed back on and ramps it back up to the target at
+     * RATE_RECOVERY_PER_SECOND while bursts go out without (AIMD), the pacer restarts from now rather than catching
+     * up on the packets not sent
+     */
+    private void adaptRate() {
+
+        long now = System.nanoTime();
+        double recovered = (lastAdaptNanos != 0) ? (now - lastAdaptNanos) / 1e9 * RATE_RECOVERY_PER_SECOND : 0;
+        lastAdaptNanos = now;
+
+        double scale = pressured ? Math.max(MIN_RATE_SCALE, rateScale / 2) : Math.min(1.0, rateScale + recovered);
+
+        if (scale == rateScale)
+            return;
+
+        if (pressured) {
+            final double backedOff = currentRate * scale;
+            Logger.log( backoffLogLimit, Logger.Level.WARN, TAG , () -> String.format("- Send buffer full, backing off to %.0f pps", backedOff) );
+        }
+
+        rateScale = scale;
+        flowMetrics.setRateScale(scale);
+    }
+
+    /**
+     * recordSendNanos - accounts the time of a send call, a call blocked longer than the stall threshold is
+     * backpressure
+     * @param nanos
+     */
+    private void recordSendNanos(long nanos) {
+
+        flowMetrics.recordSendTime(nanos);
+
+        if (nanos > stallNanos) {
+            flowMetrics.recordSendStall();
+            pressured = true;
+        }
+    }
+
+    /**
+     * backoffNoBuffers - accounts a send refused for lack of buffer space (ENOBUFS) and waits before it is retried,
+     * with a longer wait on every attempt, unless the policy drops the packet
+     * @param attempt - 0 for the first refusal of the packet
+     * @return boolean - retry the send
+     */
+    private boolean backoffNoBuffers(int attempt) {
+
+        flowMetrics.recordSendNoBuffers();
+        pressured = true;
 
-            // acquire rate token
-            rateLimiter.acquire();
+        if (backpressurePolicy == CommonEnums.BackpressurePolicy.DROP || !running)
+            return false;
 
+        LockSupport.parkNanos(Math.min(RETRY_PARK_NANOS << Math.min(attempt, 8), MAX_RETRY_PARK_NANOS));
+        return running;
+    }
+
+    /**
+     * isNoBuffers - the send failed because the kernel ran out of buffer space (ENOBUFS), the JDK only reports it
+     * in the message
+     * @param e
+     * @return boolean
+     */
+    private static boolean isNoBuffers(IOException e) {
+        return e.getMessage() != null && e.getMessage().contains("No buffer space available");
+    }
+
+    /**
+     * sendSocket - builds a new DatagramPacket around a generated packet and sends it
+     * @param p
+     * @return boolean - packet was sent
+     */
+    private boolean sendSocket(RateProfile p) {
+
+        DatagramPacket sendPacket;
+
+        if (parent.getPacketBuilder() != null) {
+            // copy the packet built ahead into the one reused datagram
+            sendPacket = takeRingDatagram();
+            if (sendPacket == null)
+                return false;
+        } else {
             // generate data
-            byte[] sendData = parent.offerPacket(mtuBytes,varyPacketSize);
+            long buildNanos = System.nanoTime();
+            byte[] sendData = parent.offerPacket(p.mtuBytes, p.varyPacketSize);
+            flowMetrics.recordBuildTime(System.nanoTime() - buildNanos);
 
             // put data into UDP datagram and send
-            DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, destIP, destPort);
-            try {
-                if (txSocket != null ) {
-                    if (debugLogging) {   Logger.log( TAG , "- Sending Packet" ); }
+            sendPacket = new DatagramPacket(sendData, sendData.length);
+        }
+
+        if (txSocket == null)
+            return false;
+
+        if (sequenceHeader)
+            SequenceHeader.stamp(sendPacket.getData(), sequenceOffset, sequence++, SequenceHeader.nowEpochNanos(), udpHeader);
+
+        if (debugLogging) {   Logger.log( sendLogLimit, Logger.Level.DEBUG, TAG , () -> "- Sending Packet" ); }
+
+        // the same datagram goes to every destination
+        boolean sent = false;
 
+        Destinations d = destinations;
+
+        for (int i = 0; i < d.addresses.length; i++) {
+            sendPacket.setSocketAddress(d.addresses[i]);
+
+            // a send refused for lack of buffer space is retried or dropped as the policy says
+            for (int attempt = 0; ; attempt++) {
+                try {
+                    long sendNanos = System.nanoTime();
                     txSocket.send(sendPacket);
-                    packetsSent_count = packetsSent_count + 1;
-                    parent.increment_PacketsSent();
+                    recordSendNanos(System.nanoTime() - sendNanos);
+                    flowMetrics.recordPacket(d.metrics[i], sendPacket.getLength());
+                    sent = true;
+                } catch (IOException e) {
+                    if (!isNoBuffers(e)) {
+                        flowMetrics.recordError(d.metrics[i]);
+                        Logger.log( errorLogLimit, Logger.Level.ERROR, TAG , () -> "- Error sending packet.\n" + e );
+                    } else if (backoffNoBuffers(attempt)) {
+                        continue;
+                    } else {
+                        flowMetrics.recordDropped();
+                    }
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
+                break;
             }
+        }
 
-            if (variableRate) {
-
-                Random random = new Random();
-                double newRate = random.nextDouble() * maxPacketsPerSecond;
-                rateLimiter.setRate(newRate);
-            }
+        if (sent) {
+            packetsSent_count = packetsSent_count + 1;
+            flowMetrics.recordTransmitted();
         }
 
+        return sent;
+    }
 
-        txSocket.close();
+    /**
+     * takeRingDatagram - copies the next packet built ahead into the reused datagram
+     * @return DatagramPacket - null when no packet is ready
+     */
+    private DatagramPacket takeRingDatagram() {
 
-        if (debugLogging) {   Logger.log( TAG , "- Finished" ); }
-    }
+        PacketBuilder packetBuilder = parent.getPacketBuilder();
+        ByteBuffer packet = packetBuilder.take();
 
+        if (packet == null)
+            return null;
 
+        if (ringPacket == null)
+            ringPacket = new DatagramPacket(new byte[packetBuilder.getSlotSize()], 0);
 
-    /** Getters / Setters **/
+        int packetLength = packet.remaining();
+        packet.get(0, ringPacket.getData(), 0, packetLength);
+        ringPacket.setLength(packetLength);
+        packetBuilder.release();
 
-    public InetAddress getDestIP() {
-        return destIP;
+        return ringPacket;
     }
 
-    public void setDestIP(InetAddress destIP) {
-        this.destIP = destIP;
+    /**
+     * acquirePacket - next packet to send, taken from the ring when packets are built ahead, else generated in
+     * place into a pooled direct buffer
+     * @param p
+     * @return ByteBuffer - null when no packet is ready
+     */
+    private ByteBuffer acquirePacket(RateProfile p) {
+
+        if (parent.getPacketBuilder() != null)
+            return parent.getPacketBuilder().take();
+
+        ByteBuffer packet = parent.getBufferPool().acquire();
+        long buildNanos = System.nanoTime();
+        parent.offerPacket(packet, p.mtuBytes, p.varyPacketSize);
+        flowMetrics.recordBuildTime(System.nanoTime() - buildNanos);
+        return packet;
     }
 
-    public int getDestPort() {
-        return destPort;
+    /**
+     * releasePacket - returns a packet from acquirePacket to the ring or pool
+     * @param packet
+     */
+    private void releasePacket(ByteBuffer packet) {
+
+        if (parent.getPacketBuilder() != null)
+            parent.getPacketBuilder().release();
+        else
+            parent.getBufferPool().release(packet);
     }
 
-    public void setDestPort(int destPort) {
-        this.destPort = destPort;
+    /**
+     * sendChannel - sends a packet generated in place into a direct buffer,
+     * the steady state does not allocate
+     * @param p
+     * @return boolean - packet was sent
+     */
+    private boolean sendChannel(RateProfile p) {
+
+        // generate data in place, or take it from the ring
+        ByteBuffer sendBuffer = acquirePacket(p);
+        if (sendBuffer == null)
+            return false;
+
+        try {
+            if (txChannel == null)
+                return false;
+
+            if (sequenceHeader)
+                SequenceHeader.stamp(sendBuffer, sequenceOffset, sequence++, SequenceHeader.nowEpochNanos(), udpHeader);
+
+            if (debugLogging) {   Logger.log( sendLogLimit, Logger.Level.DEBUG, TAG , () -> "- Sending Packet" ); }
+
+            // the same buffer goes to every destination, rewound between sends
+            int packetLength = sendBuffer.remaining();
+            boolean sent = false;
+            Destinations d = destinations;
+
+            for (int i = 0; i < d.addresses.length && running; i++) {
+
+                // a send refused for lack of buffer space is retried or dropped as the policy says
+                for (int attempt = 0; ; attempt++) {
+                    try {
+                        sendBuffer.position(0);
+                        long sendNanos = System.nanoTime();
+                        int written = txChannel.send(sendBuffer, d.addresses[i]);
+                        recordSendNanos(System.nanoTime() - sendNanos);
+
+                        // a non-blocking channel whose send buffer is full sends nothing
+                        if (written == 0) {
+                            flowMetrics.recordDropped();
+                            pressured = true;
+                        } else {
+                            flowMetrics.recordPacket(d.metrics[i], packetLength);
+                            sent = true;
+                        }
+                    } catch (ClosedByInterruptException e) {
+                        // shut down while sending, the channel is already closed
+                        running = false;
+                    } catch (IOException e) {
+                        if (!isNoBuffers(e)) {
+                            flowMetrics.recordError(d.metrics[i]);
+                            Logger.log( errorLogLimit, Logger.Level.ERROR, TAG , () -> "- Error sending packet.\n" + e );
+                        } else if (backoffNoBuffers(attempt)) {
+                            continue;
+                        } else {
+                            flowMetrics.recordDropped();
+                        }
+                    }
+                    break;
+                }
+            }
+
+            if (sent) {
+                packetsSent_count = packetsSent_count + 1;
+                flowMetrics.recordTransmitted();
+            }
+
+            return sent;
+        } finally {
+            releasePacket(sendBuffer);
+        }
+    }
+
+    /**
+     * sendPcap - appends a packet generated in place into a direct buffer to the capture file,
+     * stamped with the pacer deadline of its burst
+     * @param p
+     * @return boolean - packet was written
+     */
+    private boolean sendPcap(RateProfile p) {
+
+        // generate data in place, or take it from the ring
+        ByteBuffer sendBuffer = acquirePacket(p);
+        if (sendBuffer == null)
+            return false;
+
+        try {
+            if (pcapWriter != null ) {
+                if (sequenceHeader)
+                    SequenceHeader.stamp(sendBuffer, sequenceOffset, sequence++, SequenceHeader.epochNanos(pacer.getDeadline()), udpHeader);
+
+                int packetLength = sendBuffer.remaining();
+                long sendNanos = System.nanoTime();
+                pcapWriter.write(sendBuffer, pacer.getDeadline());
+                flowMetrics.recordSendTime(System.nanoTime() - sendNanos);
+                packetsSent_count = packetsSent_count + 1;
+                flowMetrics.recordPacket(socketMetrics, packetLength);
+                flowMetrics.recordTransmitted();
+                return true;
+            }
+        } catch (IOException e) {
+            flowMetrics.recordError(socketMetrics);
+            Logger.log( errorLogLimit, Logger.Level.ERROR, TAG , () -> "- Error writing packet.\n" + e );
+        } finally {
+            releasePacket(sendBuffer);
+        }
+
+        return false;
     }
 
-    public int getMtuBytes() {
-        return mtuBytes;
+    /**
+     * close - releases the socket, channel or capture file
+     */
+    private void close() {
+
+        if (!closed.compareAndSet(false, true))
+            return;
+
+        flowMetrics.removeSocket(name);
+        flowMetrics.setTargetRate(0);
+
+        // a retarget in progress either finished registering or sees the socket closed
+        synchronized (destinationsLock) {
+            Destinations d = destinations;
+            if (d != null)
+                for (FlowMetrics.SocketMetrics destination : d.metrics)
+                    flowMetrics.removeSocket(destination.getName());
+        }
+
+        if (txSocket != null)
+            txSocket.close();
+
+        try {
+            if (txChannel != null)
+                txChannel.close();
+
+            if (pcapWriter != null) {
+                pcapWriter.close();
+                Logger.log( TAG , "- Wrote " + pcapWriter.getRecordsWritten() + " packets to " + pcapWriter.getFileName() );
+            }
+        } catch (IOException e) {
+            Logger.log( Logger.Level.ERROR, TAG , "- Error closing sink.\n" + e );
+        } finally {
+            terminated.countDown();
+        }
     }
 
-    public void setMtuBytes(int mtuBytes) {
-        this.mtuBytes = mtuBytes;
+    /**
+     * updateRate - picks a new random rate after every burst when variable rate is on, it only changes the interval
+     * the pacer advances by
+     * @param p
+     */
+    private void updateRate(RateProfile p) {
+
+        if (p.variableRate) {
+            currentRate = random.nextDouble() * p.maxPacketsPerSecond;
+
+            if (ratePaced)
+                flowMetrics.setTargetRate(currentRate);
+        }
     }
 
-    public int getMaxPacketsPerSecond() {
-        return maxPacketsPerSecond;
+
+
+    /** Getters **/
+
+    public InetAddress getDestIP() {
+        Destinations d = destinations;
+        return (d != null) ? d.addresses[0].getAddress() : null;
     }
 
-    public void setMaxPacketsPerSecond(int maxPacketsPerSecond) {
-        this.maxPacketsPerSecond = maxPacketsPerSecond;
+    public int getDestPort() {
+        Destinations d = destinations;
+        return (d != null) ? d.addresses[0].getPort() : 0;
     }
 
-    public boolean isVariableRate() {
-        return variableRate;
+    public InetSocketAddress[] getDestinations() {
+        Destinations d = destinations;
+        return (d != null) ? d.addresses.clone() : null;
     }
 
-    public void setVariableRate(boolean variableRate) {
-        this.variableRate = variableRate;
+    /**
+     * Resolved destinations and their metrics, replaced as a whole so a sender always sees a matching pair
+     */
+    private static final class Destinations {
+        final InetSocketAddress[] addresses;
+        final FlowMetrics.SocketMetrics[] metrics;
+
+        Destinations(InetSocketAddress[] addresses, FlowMetrics.SocketMetrics[] metrics) {
+            this.addresses = addresses;
+            this.metrics = metrics;
+        }
     }
 }
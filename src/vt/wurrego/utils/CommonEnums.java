@@ -1,5 +1,7 @@
 package vt.wurrego.utils;
 
+import com.google.gson.annotations.SerializedName;
+
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.Map;
@@ -54,8 +56,74 @@ public class CommonEnums {
         }
     }
 
+    public enum TxMode {
+        @SerializedName("socket")
+        SOCKET,
+
+        @SerializedName("channel")
+        CHANNEL,
+
+        @SerializedName("pcap")
+        PCAP
+    }
+
+    public enum ReplayMode {
+        @SerializedName("in_order")
+        IN_ORDER,
+
+        @SerializedName("random")
+        RANDOM,
+
+        @SerializedName("original_timing")
+        ORIGINAL_TIMING
+    }
+
+    public enum ContentSourceType {
+        @SerializedName("file")
+        FILE,
+
+        @SerializedName("random")
+        RANDOM,
+
+        @SerializedName("pattern")
+        PATTERN,
+
+        @SerializedName("counter")
+        COUNTER,
+
+        @SerializedName("prbs7")
+        PRBS7,
+
+        @SerializedName("prbs15")
+        PRBS15,
+
+        @SerializedName("prbs23")
+        PRBS23,
+
+        @SerializedName("prbs31")
+        PRBS31
+    }
+
+    public enum BackpressurePolicy {
+        @SerializedName("block")
+        BLOCK,
+
+        @SerializedName("drop")
+        DROP,
 
+        @SerializedName("adaptive")
+        ADAPTIVE
+    }
 
+    public enum ExecutionMode {
+        @SerializedName("threads")
+        THREADS,
 
+        @SerializedName("scheduler")
+        SCHEDULER,
+
+        @SerializedName("virtual")
+        VIRTUAL
+    }
 
 }
@@ -0,0 +1,58 @@
+package vt.wurrego.utils;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Small fixed-size pool of reusable direct buffers
+ *
+ * All buffers are allocated up front. acquire() and release() are backed by an array queue so the steady state
+ * does not allocate; when the pool runs dry a temporary buffer is allocated instead of blocking the caller.
+ *
+ * Created by wurrego on 6/4/17.
+ */
+public class DirectBufferPool {
+
+    private final ArrayBlockingQueue<ByteBuffer> buffers;
+    private final int bufferCapacity;
+
+    /**
+     * DirectBufferPool - allocates poolSize direct buffers of bufferCapacity bytes
+     * @param poolSize
+     * @param bufferCapacity
+     */
+    public DirectBufferPool(int poolSize, int bufferCapacity) {
+
+        this.bufferCapacity = bufferCapacity;
+        this.buffers = new ArrayBlockingQueue<ByteBuffer>(poolSize);
+
+        for (int i = 0; i < poolSize; i++)
+            buffers.offer(ByteBuffer.allocateDirect(bufferCapacity));
+    }
+
+    /**
+     * acquire - takes a cleared buffer from the pool
+     * @return ByteBuffer
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = buffers.poll();
+
+        if (buffer == null)
+            buffer = ByteBuffer.allocateDirect(bufferCapacity);
+
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * release - hands a buffer back to the pool, buffers beyond the pool size are dropped
+     * @param buffer
+     */
+    public void release(ByteBuffer buffer) {
+        buffers.offer(buffer);
+    }
+
+    public int getBufferCapacity() {
+        return bufferCapacity;
+    }
+}
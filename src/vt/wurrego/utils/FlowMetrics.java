@@ -0,0 +1,542 @@
+package vt.wurrego.utils;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free counters for a single content flow
+ *
+ * All counters are striped (LongAdder) so any number of sender threads can update them without contention.
+ * Packets, bytes and errors are tracked for the flow as a whole, per Markov state and per socket.
+ *
+ * Created by wurrego on 5/9/17.
+ */
+public class FlowMetrics implements FlowMetricsMBean {
+
+    /**
+     * class parameters
+     */
+    private static final int NUMBER_STATES = CommonEnums.StateStatus.values().length;
+
+    private final String name;
+
+    // flow totals
+    private final LongAdder packetsSent = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder sendErrors = new LongAdder();
+
+    // per state
+    private final LongAdder[] statePacketsSent = newAdders(NUMBER_STATES);
+    private final LongAdder[] stateBytesSent = newAdders(NUMBER_STATES);
+    private final LongAdder[] stateNanos = newAdders(NUMBER_STATES);
+    private final AtomicReference<StateEntry> currentState = new AtomicReference<StateEntry>(new StateEntry(CommonEnums.StateStatus.OFF, System.nanoTime()));
+
+    // bursts
+    private final LongAdder bursts = new LongAdder();
+    private final LongAdder burstPacketsSent = new LongAdder();
+    private final LongAdder burstSpacingNanos = new LongAdder();
+    private volatile int lastBurstSize;
+
+    // pacing, how late bursts leave relative to their deadlines
+    private final LongAdder pacedBursts = new LongAdder();
+    private final LongAdder pacingJitterNanos = new LongAdder();
+    private final LongAccumulator maxPacingJitterNanos = new LongAccumulator(Math::max, 0);
+
+    // packet ring, how far the builder stage runs ahead of the sender
+    private volatile int ringCapacity;
+    private volatile int ringFill;
+    private final LongAccumulator ringHighWater = new LongAccumulator(Math::max, 0);
+    private final LongAccumulator ringLowWater = new LongAccumulator(Math::min, Long.MAX_VALUE);
+    private final LongAdder ringUnderruns = new LongAdder();
+
+    // latency histograms, moved into the snapshots every interval
+    private final LatencyHistogram sendGap = new LatencyHistogram();
+    private final LatencyHistogram buildTime = new LatencyHistogram();
+    private final LatencyHistogram sendTime = new LatencyHistogram();
+    private volatile LatencyHistogram.Snapshot sendGapSnapshot = LatencyHistogram.Snapshot.EMPTY;
+    private volatile LatencyHistogram.Snapshot buildTimeSnapshot = LatencyHistogram.Snapshot.EMPTY;
+    private volatile LatencyHistogram.Snapshot sendTimeSnapshot = LatencyHistogram.Snapshot.EMPTY;
+
+    // backpressure, sends the kernel pushed back on
+    private final LongAdder sendStalls = new LongAdder();
+    private final LongAdder sendNoBuffers = new LongAdder();
+    private final LongAdder packetsDropped = new LongAdder();
+    private volatile double rateScale = 1.0;
+
+    // rate, packets sent once whatever the number of destinations against the packets the pacer was asked for, each
+    // stretch of time is folded into the target packets once by whoever moves targetSinceNanos past it
+    private final LongAdder packetsTransmitted = new LongAdder();
+    private volatile double targetRate;
+    private final DoubleAdder targetPackets = new DoubleAdder();
+    private final AtomicLong targetSinceNanos = new AtomicLong(System.nanoTime());
+    private long rateSnapshotNanos = targetSinceNanos.get();
+    private long rateSnapshotTransmitted;
+    private volatile double targetRateSnapshot;
+    private volatile double achievedRateSnapshot;
+
+    // per socket
+    private final Map<String, SocketMetrics> sockets = new ConcurrentHashMap<String, SocketMetrics>();
+
+    public FlowMetrics(String name) {
+        this.name = name;
+    }
+
+    /**
+     * enterState - accounts the time spent in the current state and switches to newState
+     * @param newState
+     */
+    public void enterState(CommonEnums.StateStatus newState) {
+        long now = System.nanoTime();
+
+        StateEntry previous = currentState.getAndSet(new StateEntry(newState, now));
+        stateNanos[previous.state.ordinal()].add(now - previous.enteredNanos);
+    }
+
+    /**
+     * recordPacket - accounts a packet of bytes sent through socket
+     * @param socket - metrics of the sending socket, may be null
+     * @param bytes
+     */
+    public void recordPacket(SocketMetrics socket, int bytes) {
+        int state = currentState.get().state.ordinal();
+
+        packetsSent.increment();
+        bytesSent.add(bytes);
+        statePacketsSent[state].increment();
+        stateBytesSent[state].add(bytes);
+
+        if (socket != null)
+            socket.recordPacket(bytes);
+    }
+
+    /**
+     * recordError - accounts a failed send through socket
+     * @param socket - metrics of the sending socket, may be null
+     */
+    public void recordError(SocketMetrics socket) {
+        sendErrors.increment();
+
+        if (socket != null)
+            socket.recordError();
+    }
+
+    /**
+     * recordBurst - accounts a burst of packets
+     * @param burstSent - packets actually sent in the burst
+     * @param spacingNanos - time since the start of the previous burst
+     */
+    public void recordBurst(int burstSent, long spacingNanos) {
+        bursts.increment();
+        burstPacketsSent.add(burstSent);
+        burstSpacingNanos.add(spacingNanos);
+        lastBurstSize = burstSent;
+    }
+
+    /**
+     * recordPacingJitter - accounts how late a burst left relative to its pacer deadline
+     * @param latenessNanos
+     */
+    public void recordPacingJitter(long latenessNanos) {
+        pacedBursts.increment();
+        pacingJitterNanos.add(latenessNanos);
+        maxPacingJitterNanos.accumulate(latenessNanos);
+    }
+
+    /**
+     * setRingCapacity - size of the flow's packet ring, 0 when packets are built inline
+     * @param capacity
+     */
+    public void setRingCapacity(int capacity) {
+        this.ringCapacity = capacity;
+    }
+
+    /**
+     * recordRingFill - accounts the packets ready in the ring as the sender takes the next one
+     * @param fill
+     */
+    public void recordRingFill(int fill) {
+        ringFill = fill;
+        ringHighWater.accumulate(fill);
+        ringLowWater.accumulate(fill);
+    }
+
+    /**
+     * recordRingUnderrun - accounts a send that found the ring empty and had to wait for the builder, or on the scheduler
+     * skipped its packet
+     */
+    public void recordRingUnderrun() {
+        ringUnderruns.increment();
+    }
+
+    /**
+     * recordSendGap - accounts the time between the starts of two consecutive bursts
+     * @param nanos
+     */
+    public void recordSendGap(long nanos) {
+        sendGap.record(nanos);
+    }
+
+    /**
+     * recordBuildTime - accounts the time taken to build a packet
+     * @param nanos
+     */
+    public void recordBuildTime(long nanos) {
+        buildTime.record(nanos);
+    }
+
+    /**
+     * recordSendTime - accounts the time taken by a send call
+     * @param nanos
+     */
+    public void recordSendTime(long nanos) {
+        sendTime.record(nanos);
+    }
+
+    /**
+     * recordSendStall - accounts a send call that blocked longer than the stall threshold
+     */
+    public void recordSendStall() {
+        sendStalls.increment();
+    }
+
+    /**
+     * recordSendNoBuffers - accounts a send the kernel refused for lack of buffer space (ENOBUFS)
+     */
+    public void recordSendNoBuffers() {
+        sendNoBuffers.increment();
+    }
+
+    /**
+     * recordDropped - accounts a packet not sent to a destination because the send buffer was full
+     */
+    public void recordDropped() {
+        packetsDropped.increment();
+    }
+
+    /**
+     * setRateScale - fraction of the target rate an adaptive sender backed off to
+     * @param scale
+     */
+    public void setRateScale(double scale) {
+        rateScale = scale;
+    }
+
+    /**
+     * recordTransmitted - accounts a packet sent to at least one of its destinations
+     */
+    public void recordTransmitted() {
+        packetsTransmitted.increment();
+    }
+
+    /**
+     * setTargetRate - switches the rate the flow is paced at, the target packets are the integral of the rate over time
+     * @param packetsPerSecond - 0 while paused or not paced
+     */
+    public void setTargetRate(double packetsPerSecond) {
+        accrueTarget(System.nanoTime());
+        targetRate = packetsPerSecond;
+    }
+
+    /**
+     * snapshotRate - replaces the target and achieved rates with their averages since the previous call, only called
+     * by the snapshot thread
+     */
+    public void snapshotRate() {
+        long now = System.nanoTime();
+        accrueTarget(now);
+
+        long transmitted = packetsTransmitted.sum();
+        double seconds = Math.max(1, now - rateSnapshotNanos) / 1e9;
+
+        targetRateSnapshot = targetPackets.sumThenReset() / seconds;
+        achievedRateSnapshot = (transmitted - rateSnapshotTransmitted) / seconds;
+
+        rateSnapshotNanos = now;
+        rateSnapshotTransmitted = transmitted;
+    }
+
+    /**
+     * accrueTarget - folds the packets asked for at the current target rate up to now into the target packets
+     * @param now
+     */
+    private void accrueTarget(long now) {
+        long since = targetSinceNanos.getAndSet(now);
+        targetPackets.add(targetRate * (now - since) / 1e9);
+    }
+
+    /**
+     * snapshotLatency - replaces the latency snapshots with the values recorded since the previous call
+     */
+    public void snapshotLatency() {
+        sendGapSnapshot = sendGap.snapshotAndReset();
+        buildTimeSnapshot = buildTime.snapshotAndReset();
+        sendTimeSnapshot = sendTime.snapshotAndReset();
+    }
+
+    public LatencyHistogram.Snapshot getSendGapSnapshot() {
+        return sendGapSnapshot;
+    }
+
+    public LatencyHistogram.Snapshot getBuildTimeSnapshot() {
+        return buildTimeSnapshot;
+    }
+
+    public LatencyHistogram.Snapshot getSendTimeSnapshot() {
+        return sendTimeSnapshot;
+    }
+
+    /**
+     * socket - registers the metrics of a newly opened socket, a name already registered keeps its metrics
+     * @param socketName
+     * @return SocketMetrics
+     */
+    public SocketMetrics socket(String socketName) {
+        return sockets.computeIfAbsent(socketName, key -> new SocketMetrics(key));
+    }
+
+    /**
+     * removeSocket - drops the metrics of a closed socket
+     * @param socketName
+     */
+    public void removeSocket(String socketName) {
+        sockets.remove(socketName);
+    }
+
+    public Iterable<SocketMetrics> getSockets() {
+        return sockets.values();
+    }
+
+    /** MBean Attributes **/
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String getCurrentState() {
+        return currentState.get().state.toString();
+    }
+
+    @Override
+    public long getPacketsSent() {
+        return packetsSent.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public long getSendErrors() {
+        return sendErrors.sum();
+    }
+
+    @Override
+    public long getBursts() {
+        return bursts.sum();
+    }
+
+    @Override
+    public int getLastBurstSize() {
+        return lastBurstSize;
+    }
+
+    @Override
+    public double getAverageBurstSize() {
+        long count = bursts.sum();
+        return (count == 0) ? 0.0 : (double) burstPacketsSent.sum() / count;
+    }
+
+    @Override
+    public double getAverageBurstSpacingMillis() {
+        long count = bursts.sum();
+        return (count == 0) ? 0.0 : burstSpacingNanos.sum() / 1e6 / count;
+    }
+
+    @Override
+    public double getAveragePacingJitterMicros() {
+        long count = pacedBursts.sum();
+        return (count == 0) ? 0.0 : pacingJitterNanos.sum() / 1e3 / count;
+    }
+
+    @Override
+    public double getMaxPacingJitterMicros() {
+        return maxPacingJitterNanos.get() / 1e3;
+    }
+
+    @Override
+    public int getRingCapacity() {
+        return ringCapacity;
+    }
+
+    @Override
+    public int getRingFill() {
+        return ringFill;
+    }
+
+    @Override
+    public long getRingHighWater() {
+        return ringHighWater.get();
+    }
+
+    @Override
+    public long getRingLowWater() {
+        long lowWater = ringLowWater.get();
+        return (lowWater == Long.MAX_VALUE) ? 0 : lowWater;
+    }
+
+    @Override
+    public long getRingUnderruns() {
+        return ringUnderruns.sum();
+    }
+
+    @Override
+    public double[] getSendGapMicros() {
+        return percentilesMicros(sendGapSnapshot);
+    }
+
+    @Override
+    public double[] getBuildTimeMicros() {
+        return percentilesMicros(buildTimeSnapshot);
+    }
+
+    @Override
+    public double[] getSendTimeMicros() {
+        return percentilesMicros(sendTimeSnapshot);
+    }
+
+    @Override
+    public long getSendStalls() {
+        return sendStalls.sum();
+    }
+
+    @Override
+    public long getSendNoBuffers() {
+        return sendNoBuffers.sum();
+    }
+
+    @Override
+    public long getPacketsDropped() {
+        return packetsDropped.sum();
+    }
+
+    @Override
+    public double getRateScale() {
+        return rateScale;
+    }
+
+    @Override
+    public double getTargetPacketsPerSecond() {
+        return targetRateSnapshot;
+    }
+
+    @Override
+    public double getAchievedPacketsPerSecond() {
+        return achievedRateSnapshot;
+    }
+
+    public long getStatePacketsSent(CommonEnums.StateStatus state) {
+        return statePacketsSent[state.ordinal()].sum();
+    }
+
+    public long getStateBytesSent(CommonEnums.StateStatus state) {
+        return stateBytesSent[state.ordinal()].sum();
+    }
+
+    /**
+     * getStateSeconds - total time spent in state, including the time in the current state so far
+     * @param state
+     * @return double
+     */
+    public double getStateSeconds(CommonEnums.StateStatus state) {
+        long nanos = stateNanos[state.ordinal()].sum();
+
+        StateEntry current = currentState.get();
+        if (state == current.state)
+            nanos += System.nanoTime() - current.enteredNanos;
+
+        return nanos / 1e9;
+    }
+
+    /**
+     * percentilesMicros - p50, p99, p99.9 and max of a snapshot
+     * @param snapshot
+     * @return double[]
+     */
+    private static double[] percentilesMicros(LatencyHistogram.Snapshot snapshot) {
+        return new double[] {
+                snapshot.getValueAtPercentile(50) / 1e3,
+                snapshot.getValueAtPercentile(99) / 1e3,
+                snapshot.getValueAtPercentile(99.9) / 1e3,
+                snapshot.getMax() / 1e3
+        };
+    }
+
+    private static LongAdder[] newAdders(int size) {
+        LongAdder[] adders = new LongAdder[size];
+
+        for (int i = 0; i < size; i++)
+            adders[i] = new LongAdder();
+
+        return adders;
+    }
+
+    /**
+     * State the flow is in and when it entered it, swapped as one
+     */
+    private static final class StateEntry {
+        final CommonEnums.StateStatus state;
+        final long enteredNanos;
+
+        StateEntry(CommonEnums.StateStatus state, long enteredNanos) {
+            this.state = state;
+            this.enteredNanos = enteredNanos;
+        }
+    }
+
+    /**
+     * Counters for a single socket of a flow
+     */
+    public static class SocketMetrics {
+        private final String name;
+        private final LongAdder packetsSent = new LongAdder();
+        private final LongAdder bytesSent = new LongAdder();
+        private final LongAdder sendErrors = new LongAdder();
+
+        SocketMetrics(String name) {
+            this.name = name;
+        }
+
+        void recordPacket(int bytes) {
+            packetsSent.increment();
+            bytesSent.add(bytes);
+        }
+
+        void recordError() {
+            sendErrors.increment();
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getPacketsSent() {
+            return packetsSent.sum();
+        }
+
+        public long getBytesSent() {
+            return bytesSent.sum();
+        }
+
+        public long getSendErrors() {
+            return sendErrors.sum();
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package vt.wurrego.utils;
+
+/**
+ * JMX view of the metrics of a single content flow
+ *
+ * Created by wurrego on 5/9/17.
+ */
+public interface FlowMetricsMBean {
+
+    String getName();
+
+    String getCurrentState();
+
+    long getPacketsSent();
+
+    long getBytesSent();
+
+    long getSendErrors();
+
+    long getBursts();
+
+    int getLastBurstSize();
+
+    double getAverageBurstSize();
+
+    double getAverageBurstSpacingMillis();
+
+    double getAveragePacingJitterMicros();
+
+    double getMaxPacingJitterMicros();
+
+    int getRingCapacity();
+
+    int getRingFill();
+
+    long getRingHighWater();
+
+    long getRingLowWater();
+
+    long getRingUnderruns();
+
+    // p50, p99, p99.9 and max of the last latency snapshot
+    double[] getSendGapMicros();
+
+    double[] getBuildTimeMicros();
+
+    double[] getSendTimeMicros();
+
+    long getSendStalls();
+
+    long getSendNoBuffers();
+
+    long getPacketsDropped();
+
+    double getRateScale();
+
+    // averages over the last latency interval
+    double getTargetPacketsPerSecond();
+
+    double getAchievedPacketsPerSecond();
+}
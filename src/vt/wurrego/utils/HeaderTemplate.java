@@ -0,0 +1,151 @@
+package vt.wurrego.utils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Precompiled IPv4/UDP header for a single content descriptor
+ *
+ * Everything but the length fields and checksums is fixed per descriptor, so the header is built once with both
+ * lengths set to zero and the 1's complement sums of its fixed words are kept. Per packet only the lengths are patched
+ * and the checksums are updated incrementally (RFC 1624 - HC' = ~(~HC + ~m + m'), with m = 0 in the template) by
+ * folding in the new lengths and the payload sum.
+ *
+ * Created by wurrego on 6/4/17.
+ */
+public class HeaderTemplate {
+
+    /**
+     * class parameters
+     */
+    public static final int HEADER_SIZE = IPUtils.IP_HEADER_SIZE + IPUtils.UDP_HEADER_SIZE;
+    public static final byte PROTOCOL_UDP = 0x11;
+
+    private static final int IP_TOTAL_LENGTH_POS = 2;
+    private static final int IP_CHECKSUM_POS = 10;
+    private static final int UDP_LENGTH_POS = IPUtils.IP_HEADER_SIZE + 4;
+    private static final int UDP_CHECKSUM_POS = IPUtils.IP_HEADER_SIZE + 6;
+
+    private final byte[] template;
+    private final long ipPartialSum;
+    private final long udpPartialSum;
+
+    /**
+     * HeaderTemplate - compiles the fixed part of the IPv4/UDP header
+     * @param sourceAddress - source IPv4 address (4 bytes)
+     * @param destAddress - destination IPv4 address (4 bytes)
+     * @param sourcePort
+     * @param destPort
+     */
+    public HeaderTemplate(byte[] sourceAddress, byte[] destAddress, short sourcePort, short destPort) {
+
+        template = new byte[HEADER_SIZE];
+
+        /** Standard IPV4 Header 20 bytes **/
+            // version (4 bits)                 -- 0x04
+            // IHL (4 bits)                     -- 0x05
+            template[0] = (byte) 0x45;
+
+            // DSCP (6 bits)                    -- 0
+            // ECN (2 bits)
+            template[1] = (byte) 0x00;
+
+            // Total Length (2 bytes)           - patched per packet
+            // Identification (2 bytes)         -- 0
+            // Flags (3 bits)
+            // Fragment Offset (13 bits)        -- 0
+
+            // TTL (1 byte)                     -- d'255
+            template[8] = (byte) 0xFF;
+
+            // Protocol (1 byte)                - d'17 [UDP]
+            template[9] = PROTOCOL_UDP;
+
+            // Header Checksum (2 bytes)        - patched per packet
+
+            // Source IP Address (4 bytes)
+            System.arraycopy(sourceAddress, 0, template, 12, 4);
+
+            // Destination IP Address (4 bytes)
+            System.arraycopy(destAddress, 0, template, 16, 4);
+
+        /** Standard UDP Header 8 bytes **/
+            // Source Port (2 bytes)
+            template[IPUtils.IP_HEADER_SIZE] = (byte) (sourcePort >> 8);
+            template[IPUtils.IP_HEADER_SIZE + 1] = (byte) sourcePort;
+
+            // Destination Port (2 bytes)
+            template[IPUtils.IP_HEADER_SIZE + 2] = (byte) (destPort >> 8);
+            template[IPUtils.IP_HEADER_SIZE + 3] = (byte) destPort;
+
+            // Length (2 bytes)                 - patched per packet
+            // Checksum (2 bytes)               - patched per packet
+
+        // IP header sum without Total Length
+        ipPartialSum = IPUtils.IPHeaderChecksum.partialSum(template, 0, IPUtils.IP_HEADER_SIZE);
+
+        // psuedo header (source, dest, zeroes, protocol) and UDP header sum without the two UDP Length fields
+        udpPartialSum = IPUtils.IPHeaderChecksum.partialSum(template, 12, 8)
+                + PROTOCOL_UDP
+                + IPUtils.IPHeaderChecksum.partialSum(template, IPUtils.IP_HEADER_SIZE, IPUtils.UDP_HEADER_SIZE);
+    }
+
+    /**
+     * write - writes the header for a payload of payloadLength bytes into packet[offset, offset + HEADER_SIZE)
+     * @param packet
+     * @param offset
+     * @param payloadLength
+     * @param payloadSum - partial 1's complement sum of the payload
+     */
+    public void write(byte[] packet, int offset, int payloadLength, long payloadSum) {
+
+        int totalLength = HEADER_SIZE + payloadLength;
+        int udpLength = IPUtils.UDP_HEADER_SIZE + payloadLength;
+
+        System.arraycopy(template, 0, packet, offset, HEADER_SIZE);
+
+        // Total Length and IP header checksum
+        int ipChkSum = ~IPUtils.IPHeaderChecksum.fold(ipPartialSum + totalLength) & 0xFFFF;
+        putShort(packet, offset + IP_TOTAL_LENGTH_POS, totalLength);
+        putShort(packet, offset + IP_CHECKSUM_POS, ipChkSum);
+
+        // UDP Length (counted once in the psuedo header and once in the UDP header) and UDP checksum
+        int udpChkSum = ~IPUtils.IPHeaderChecksum.fold(udpPartialSum + 2L * udpLength + payloadSum) & 0xFFFF;
+        if (udpChkSum == 0)
+            udpChkSum = 0xFFFF;
+        putShort(packet, offset + UDP_LENGTH_POS, udpLength);
+        putShort(packet, offset + UDP_CHECKSUM_POS, udpChkSum);
+    }
+
+    /**
+     * write - writes the header for a payload of payloadLength bytes into packet[offset, offset + HEADER_SIZE)
+     * using absolute puts, the buffer position and limit are left untouched
+     * @param packet
+     * @param offset
+     * @param payloadLength
+     * @param payloadSum - partial 1's complement sum of the payload
+     */
+    public void write(ByteBuffer packet, int offset, int payloadLength, long payloadSum) {
+
+        int totalLength = HEADER_SIZE + payloadLength;
+        int udpLength = IPUtils.UDP_HEADER_SIZE + payloadLength;
+
+        packet.put(offset, template);
+
+        // Total Length and IP header checksum
+        int ipChkSum = ~IPUtils.IPHeaderChecksum.fold(ipPartialSum + totalLength) & 0xFFFF;
+        packet.putShort(offset + IP_TOTAL_LENGTH_POS, (short) totalLength);
+        packet.putShort(offset + IP_CHECKSUM_POS, (short) ipChkSum);
+
+        // UDP Length (counted once in the psuedo header and once in the UDP header) and UDP checksum
+        int udpChkSum = ~IPUtils.IPHeaderChecksum.fold(udpPartialSum + 2L * udpLength + payloadSum) & 0xFFFF;
+        if (udpChkSum == 0)
+            udpChkSum = 0xFFFF;
+        packet.putShort(offset + UDP_LENGTH_POS, (short) udpLength);
+        packet.putShort(offset + UDP_CHECKSUM_POS, (short) udpChkSum);
+    }
+
+    private static void putShort(byte[] packet, int position, int value) {
+        packet[position] = (byte) (value >> 8);
+        packet[position + 1] = (byte) value;
+    }
+}
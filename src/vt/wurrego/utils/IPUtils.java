@@ -1,9 +1,9 @@
 package vt.wurrego.utils;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
+import java.nio.ByteOrder;
 
 /**
  * Created by wurrego on 6/4/17.
@@ -15,60 +15,34 @@ public class IPUtils {
 
     public static class IPHeaderChecksum {
 
+        // big-endian 64-bit view of a byte [], so a word is read with a single load
+        private static final VarHandle LONG_BE = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+        private static final VarHandle INT_BE = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
         /**
-         * Calculate the Internet Checksum of a buffer (RFC 1071 - http://www.faqs.org/rfcs/rfc1071.html)
-         * Algorithm is
-         * 1) apply a 16-bit 1's complement sum over all octets (adjacent 8-bit pairs [A,B], final odd length is [A,0])
-         * 2) apply 1's complement to this final sum
+         * Calculate the UDP checksum (RFC 768) of a datagram, the IPv4 psuedo header contribution is summed from its
+         * fields without being materialised
          *
          * Notes:
-         * 1's complement is bitwise NOT of positive value.
-         * Ensure that any carry bits are added back to avoid off-by-one errors
-         *
+         * A computed checksum of 0 is transmitted as all ones, 0 means no checksum.
          *
          * @param sourceIP - source IPv4 address
          * @param destIP - destination IPv4 address
          * @param protocol
          * @param udpLength
-         * @param udpHeader
+         * @param udpHeader - with the checksum field set to 0
          * @param data
          * @return The checksum
          */
         public static short calculateUDPChecksum(byte[] sourceIP, byte[] destIP, byte protocol, short udpLength, byte[] udpHeader, byte[] data)
         {
-            /** psuedo header for checksum calculation **/
-            ByteBuffer psuedoHeaderBuffer = ByteBuffer.allocateDirect(sourceIP.length + destIP.length + 1 + 1 + udpLength + udpHeader.length + data.length);
-
-            // source IPv4 Address (4 bytes)
-            psuedoHeaderBuffer.put(sourceIP);
-
-            // dest IPv4 Addss (4 bytes)
-            psuedoHeaderBuffer.put(destIP);
-
-            // zeroes (1 byte)
-            psuedoHeaderBuffer.put((byte)0x00);
-
-            // protocol (1 byte)
-            psuedoHeaderBuffer.put(protocol);
-
-            // udp length (2 bytes)
-            psuedoHeaderBuffer.putShort(udpLength);
-
-            // udp header (8 bytes)
-            psuedoHeaderBuffer.put(udpHeader);
+            long sum = psuedoHeaderSum(sourceIP, destIP, protocol, udpLength & 0xFFFF)
+                    + partialSum(udpHeader, 0, udpHeader.length)
+                    + partialSum(data, 0, data.length);
 
-            // data (data.length bytes)
-            psuedoHeaderBuffer.put(data);
+            int checkSum = ~fold(sum) & 0xFFFF;
 
-            // get byte [] of ipv4 psuedo header
-            psuedoHeaderBuffer.rewind();
-            byte[] psuedoHeaderData = new byte[psuedoHeaderBuffer.remaining()];
-            psuedoHeaderBuffer.get(psuedoHeaderData);
-
-            // calculate checksum
-            short checkSum = IPUtils.IPHeaderChecksum.calculateChecksum(psuedoHeaderData);
-
-            return checkSum;
+            return (short) ((checkSum == 0) ? 0xFFFF : checkSum);
         }
 
         /**
@@ -86,43 +60,137 @@ public class IPUtils {
          * @return The checksum
          */
         public static short calculateChecksum(byte[] buf) {
-            int length = buf.length;
-            int i = 0;
+            return (short) ~fold(partialSum(buf, 0, buf.length));
+        }
+
+        /**
+         * Calculate the Internet Checksum of a range of a buffer, see calculateChecksum(byte[])
+         *
+         * @param buf The message
+         * @param offset start of the range
+         * @param length number of bytes in the range
+         * @return The checksum
+         */
+        public static short calculateChecksum(ByteBuffer buf, int offset, int length) {
+            return (short) ~fold(partialSum(buf, offset, length));
+        }
+
+        /**
+         * Calculate the unfolded 1's complement sum of the IPv4 psuedo header (source, destination, zeroes, protocol,
+         * length) used by the UDP and TCP checksums
+         *
+         * @param sourceIP - source IPv4 address (4 bytes)
+         * @param destIP - destination IPv4 address (4 bytes)
+         * @param protocol
+         * @param length - UDP/TCP length
+         * @return The partial sum
+         */
+        public static long psuedoHeaderSum(byte[] sourceIP, byte[] destIP, byte protocol, int length) {
+            return ((long) (int) INT_BE.get(sourceIP, 0) & 0xFFFFFFFFL)
+                    + ((long) (int) INT_BE.get(destIP, 0) & 0xFFFFFFFFL)
+                    + (protocol & 0xFF)
+                    + length;
+        }
 
+        /**
+         * Calculate the unfolded 16-bit 1's complement sum of a range of a buffer (adjacent 8-bit pairs [A,B],
+         * final odd length is [A,0]). The result is not complemented so it can be combined with other partial sums.
+         *
+         * Notes:
+         * The range is summed 64 bits at a time as two 32-bit words into a 64-bit accumulator and carries are only
+         * folded once at the end (RFC 1071 - deferred carries). Since 2^16 = 1 (mod 2^16 - 1), the sum of 32-bit words
+         * folds to the same 1's complement sum as the sum of 16-bit words. The accumulator can not overflow for any
+         * range shorter than 2^31 words.
+         *
+         * @param buf The message
+         * @param offset start of the range
+         * @param length number of bytes in the range
+         * @return The partial sum
+         */
+        public static long partialSum(byte[] buf, int offset, int length) {
             long sum = 0;
-            long data;
+            int i = offset;
+            int end = offset + length;
 
-            // Handle all pairs
-            while (length > 1) {
+            // 8 bytes at a time
+            for (int words = end - 7; i < words; i += 8) {
+                long data = (long) LONG_BE.get(buf, i);
+                sum += (data >>> 32) + (data & 0xFFFFFFFFL);
+            }
 
-                data = (((buf[i] << 8) & 0xFF00) | ((buf[i + 1]) & 0xFF));
-                sum += data;
-                // 1's complement carry bit correction in 16-bits (detecting sign extension)
-                if ((sum & 0xFFFF0000) > 0) {
-                    sum = sum & 0xFFFF;
-                    sum += 1;
-                }
+            // remaining 4, 2 and 1 byte(s)
+            if (end - i >= 4) {
+                sum += (long) (int) INT_BE.get(buf, i) & 0xFFFFFFFFL;
+                i += 4;
+            }
 
+            if (end - i >= 2) {
+                sum += ((buf[i] & 0xFF) << 8) | (buf[i + 1] & 0xFF);
                 i += 2;
-                length -= 2;
             }
 
-            // Handle remaining byte in odd length buffers
-            if (length > 0) {
+            if (i < end)
+                sum += (buf[i] & 0xFF) << 8;
+
+            return sum;
+        }
+
+        /**
+         * Calculate the unfolded 16-bit 1's complement sum of a range of a buffer, see partialSum(byte[], int, int).
+         * Uses absolute reads, the buffer position and limit are left untouched.
+         *
+         * @param buf The message
+         * @param offset start of the range
+         * @param length number of bytes in the range
+         * @return The partial sum
+         */
+        public static long partialSum(ByteBuffer buf, int offset, int length) {
+            long sum = 0;
+            int i = offset;
+            int end = offset + length;
+            boolean bigEndian = buf.order() == ByteOrder.BIG_ENDIAN;
+
+            // 8 bytes at a time
+            for (int words = end - 7; i < words; i += 8) {
+                long data = buf.getLong(i);
+                if (!bigEndian)
+                    data = Long.reverseBytes(data);
+                sum += (data >>> 32) + (data & 0xFFFFFFFFL);
+            }
+
+            // remaining 4, 2 and 1 byte(s)
+            if (end - i >= 4) {
+                int data = buf.getInt(i);
+                if (!bigEndian)
+                    data = Integer.reverseBytes(data);
+                sum += data & 0xFFFFFFFFL;
+                i += 4;
+            }
 
-                sum += (buf[i] << 8 & 0xFF00);
-                // 1's complement carry bit correction in 16-bits (detecting sign extension)
-                if ((sum & 0xFFFF0000) > 0) {
-                    sum = sum & 0xFFFF;
-                    sum += 1;
-                }
+            if (end - i >= 2) {
+                sum += ((buf.get(i) & 0xFF) << 8) | (buf.get(i + 1) & 0xFF);
+                i += 2;
             }
 
-            // Final 1's complement value correction to 16-bits
-            sum = ~sum;
-            sum = sum & 0xFFFF;
-            return (short)sum;
+            if (i < end)
+                sum += (buf.get(i) & 0xFF) << 8;
+
+            return sum;
+        }
+
+        /**
+         * Fold carry bits of a partial sum back into 16-bits (end-around carry)
+         *
+         * @param sum The partial sum
+         * @return The folded 16-bit sum
+         */
+        public static int fold(long sum) {
+            sum = (sum & 0xFFFFFFFFL) + (sum >>> 32);
+            sum = (sum & 0xFFFF) + (sum >>> 16);
+            sum = (sum & 0xFFFF) + (sum >>> 16);
+            sum = (sum & 0xFFFF) + (sum >>> 16);
 
+            return (int) sum;
         }
 
     }
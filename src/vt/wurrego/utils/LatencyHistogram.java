@@ -0,0 +1,143 @@
+package vt.wurrego.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Log-bucketed latency histogram
+ *
+ * Values are counted in buckets laid out like HdrHistogram: every power of two range is split into SUB_BUCKETS
+ * linear buckets, so any value from 1 ns to hours is kept with about 3% precision in a fixed array of counters.
+ * Recording is one atomic increment and never allocates, any number of threads may record while another takes
+ * snapshots. A snapshot moves the counts out of the histogram, so every value lands in exactly one snapshot.
+ *
+ * Created by wurrego on 5/13/17.
+ */
+public class LatencyHistogram {
+
+    /**
+     * class parameters
+     */
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR_BUCKETS = 2 * SUB_BUCKETS;
+    private static final int BUCKETS = LINEAR_BUCKETS + (63 - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * record - counts a value, negative values count as 0
+     * @param nanos
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+
+        counts.getAndIncrement(bucket(value));
+        max.accumulate(value);
+        sum.add(value);
+    }
+
+    /**
+     * snapshotAndReset - moves the values recorded since the previous snapshot into a new snapshot
+     * @return Snapshot
+     */
+    public Snapshot snapshotAndReset() {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.getAndSet(i, 0);
+            total += snapshot[i];
+        }
+
+        return new Snapshot(snapshot, total, max.getThenReset(), sum.sumThenReset());
+    }
+
+    /**
+     * bucket - index of the bucket counting value, values below LINEAR_BUCKETS are counted exactly
+     * @param value
+     * @return int
+     */
+    static int bucket(long value) {
+        if (value < LINEAR_BUCKETS)
+            return (int) value;
+
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return LINEAR_BUCKETS + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    /**
+     * highestValue - largest value counted by a bucket
+     * @param bucket
+     * @return long
+     */
+    static long highestValue(int bucket) {
+        if (bucket < LINEAR_BUCKETS)
+            return bucket;
+
+        int shift = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 1;
+        long subBucket = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    /**
+     * Values recorded between two snapshots
+     */
+    public static class Snapshot {
+
+        public static final Snapshot EMPTY = new Snapshot(new long[BUCKETS], 0, 0, 0);
+
+        private final long[] counts;
+        private final long count;
+        private final long max;
+        private final long sum;
+
+        Snapshot(long[] counts, long count, long max, long sum) {
+            this.counts = counts;
+            this.count = count;
+            this.max = max;
+            this.sum = sum;
+        }
+
+        /**
+         * getValueAtPercentile - value at or below which percentile percent of the values fall, within the bucket
+         * precision and never above the maximum
+         * @param percentile - 0 to 100
+         * @return long - 0 when nothing was recorded
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (count == 0)
+                return 0;
+
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+            long seen = 0;
+
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank)
+                    return Math.min(highestValue(i), max);
+            }
+
+            return max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * getSum - total of the values recorded, exact rather than bucketed
+         * @return long
+         */
+        public long getSum() {
+            return sum;
+        }
+    }
+}
@@ -1,25 +1,265 @@
 package vt.wurrego.utils;
 
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
 
 /**
+ * Asynchronous logger
+ *
+ * Callers only enqueue a line on a lock-free queue, a daemon writer thread formats and prints it, so logging never
+ * blocks a sender on the console. Messages below the current level are dropped before they are built, Supplier
+ * messages are only built when they will be logged, and a RateLimit caps how often a hot-path call site logs. When
+ * the queue is full new lines are dropped and counted rather than blocking the caller.
+ *
  * Created by wurrego on 5/9/17.
  */
 public class Logger {
 
-    private static SimpleDateFormat simpleDataFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    public enum Level {
+        DEBUG,
+        INFO,
+        WARN,
+        ERROR
+    }
+
+    /**
+     * class parameters
+     */
+    private static final int MAX_QUEUED = 65536;
+    private static final long WRITER_IDLE_NANOS = 10000000L;
+    private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    private static final Queue<Entry> queue = new ConcurrentLinkedQueue<Entry>();
+    private static final AtomicInteger queued = new AtomicInteger();
+    private static final AtomicLong dropped = new AtomicLong();
+    private static final Writer out = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+    private static final Thread writer;
+
+    private static volatile Level level = Level.INFO;
+
+    // writer side, the timestamp is formatted once per second
+    private static long formattedSecond = Long.MIN_VALUE;
+    private static String formattedTimestamp;
+
+    static {
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    if (drain() == 0)
+                        LockSupport.parkNanos(WRITER_IDLE_NANOS);
+                }
+            }
+        }, "Logger");
+        writer.setDaemon(true);
+        writer.start();
+
+        // lines still queued when the process exits
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, "Logger-Flush"));
+    }
+
+    /**
+     * setLevel - lowest level that is logged
+     * @param newLevel
+     */
+    public static void setLevel(Level newLevel) {
+        level = newLevel;
+    }
+
+    public static boolean isEnabled(Level messageLevel) {
+        return messageLevel.ordinal() >= level.ordinal();
+    }
 
     public static void log(String TAG, String message) {
-        String timestamp = simpleDataFormat.format(new Date(System.currentTimeMillis()));
+        log(Level.INFO, TAG, message);
+    }
 
-        System.out.println( timestamp + TAG + " - " + message);
+    /**
+     * log - enqueues message when messageLevel is enabled
+     * @param messageLevel
+     * @param TAG
+     * @param message
+     */
+    public static void log(Level messageLevel, String TAG, String message) {
+        if (isEnabled(messageLevel))
+            enqueue(new Entry(System.currentTimeMillis(), messageLevel, TAG, message));
+    }
 
+    /**
+     * log - enqueues the message built by message, which is only called when messageLevel is enabled
+     * @param messageLevel
+     * @param TAG
+     * @param message
+     */
+    public static void log(Level messageLevel, String TAG, Supplier<String> message) {
+        if (isEnabled(messageLevel))
+            enqueue(new Entry(System.currentTimeMillis(), messageLevel, TAG, message.get()));
+    }
+
+    /**
+     * log - enqueues the message built by message when messageLevel is enabled and the call site's rate limit allows,
+     * the first line after suppressed ones reports how many were suppressed
+     * @param rateLimit - shared by the calls of one call site
+     * @param messageLevel
+     * @param TAG
+     * @param message
+     */
+    public static void log(RateLimit rateLimit, Level messageLevel, String TAG, Supplier<String> message) {
+        if (!isEnabled(messageLevel))
+            return;
+
+        long suppressed = rateLimit.tryAcquire();
+        if (suppressed < 0)
+            return;
+
+        String text = message.get();
+        if (suppressed > 0)
+            text = text + " (" + suppressed + " similar suppressed)";
+
+        enqueue(new Entry(System.currentTimeMillis(), messageLevel, TAG, text));
     }
 
     public static void log(boolean seperator) {
+        enqueue(new Entry(0, Level.INFO, null, "\n======================================================================"));
+    }
+
+    /**
+     * flush - writes every queued line on the calling thread, for shutdown before the daemon writer is stopped
+     */
+    public static void flush() {
+        drain();
+    }
+
+    private static void enqueue(Entry entry) {
+        if (queued.incrementAndGet() > MAX_QUEUED) {
+            queued.decrementAndGet();
+            dropped.incrementAndGet();
+            return;
+        }
+
+        queue.offer(entry);
+    }
+
+    /**
+     * drain - formats and writes all queued lines
+     * @return int - number of lines written
+     */
+    private static int drain() {
+        int written = 0;
+
+        synchronized (out) {
+            try {
+                Entry entry;
+                while ((entry = queue.poll()) != null) {
+                    queued.decrementAndGet();
+                    write(entry);
+                    written++;
+                }
+
+                long droppedLines = dropped.getAndSet(0);
+                if (droppedLines > 0) {
+                    write(new Entry(System.currentTimeMillis(), Level.WARN, " [" + Logger.class.getSimpleName() + "] ", "- Dropped " + droppedLines + " lines, queue full"));
+                    written++;
+                }
+
+                if (written > 0)
+                    out.flush();
+            } catch (IOException e) {
+                // console gone, nothing left to report to
+            }
+        }
+
+        return written;
+    }
+
+    private static void write(Entry entry) throws IOException {
+
+        if (entry.tag == null) {
+            out.write(entry.message);
+            out.write('\n');
+            return;
+        }
+
+        long second = entry.epochMillis / 1000;
+        if (second != formattedSecond) {
+            formattedTimestamp = TIMESTAMP_FORMAT.format(Instant.ofEpochMilli(entry.epochMillis));
+            formattedSecond = second;
+        }
+
+        out.write(formattedTimestamp);
+        if (entry.level != Level.INFO) {
+            out.write(' ');
+            out.write(entry.level.name());
+        }
+        out.write(entry.tag);
+        out.write(" - ");
+        out.write(entry.message);
+        out.write('\n');
+    }
+
+    /**
+     * Queued log line
+     */
+    private static class Entry {
+        final long epochMillis;
+        final Level level;
+        final String tag;
+        final String message;
+
+        Entry(long epochMillis, Level level, String tag, String message) {
+            this.epochMillis = epochMillis;
+            this.level = level;
+            this.tag = tag;
+            this.message = message;
+        }
+    }
+
+    /**
+     * Limits a call site to a number of lines per second, lock-free
+     */
+    public static class RateLimit {
+        private final int linesPerSecond;
+        private final AtomicLong window = new AtomicLong();
+        private final AtomicInteger lines = new AtomicInteger();
+        private final AtomicLong suppressed = new AtomicLong();
+
+        public RateLimit(int linesPerSecond) {
+            this.linesPerSecond = linesPerSecond;
+        }
+
+        /**
+         * tryAcquire - takes a line of the current one second window
+         * @return long - lines suppressed since the last one allowed, -1 when this one is suppressed
+         */
+        long tryAcquire() {
+            long now = System.nanoTime() / 1000000000L;
+            long current = window.get();
+
+            if (now != current && window.compareAndSet(current, now))
+                lines.set(0);
 
-        System.out.println( "\n======================================================================");
+            if (lines.incrementAndGet() > linesPerSecond) {
+                suppressed.incrementAndGet();
+                return -1;
+            }
 
+            return suppressed.getAndSet(0);
+        }
     }
 }
@@ -0,0 +1,407 @@
+package vt.wurrego.utils;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Process-wide metrics registry
+ *
+ * Every flow registers its FlowMetrics here. Each one is exposed as a JMX MBean (vt.wurrego:type=Flow,name=...) and,
+ * when the endpoint is started, all of them are served in Prometheus text format on http://host:port/metrics.
+ * The latency histograms and target and achieved rates of all flows are snapshot together once per interval, a flow
+ * falling short of its target rate is logged. Shared content corpora register their mapped and resident size
+ * alongside the flows.
+ *
+ * Created by wurrego on 5/9/17.
+ */
+public class Metrics {
+
+    /**
+     * class parameters
+     */
+    private static final String TAG = " [" + Metrics.class.getSimpleName() + "] ";
+    private static final String PREFIX = "packetsender_";
+    private static final double RATE_SHORTFALL = 0.95;
+
+    private static final Map<String, FlowMetrics> flows = new ConcurrentHashMap<String, FlowMetrics>();
+    private static final Map<String, Corpus> corpora = new ConcurrentHashMap<String, Corpus>();
+    private static HttpServer httpServer;
+    private static ScheduledExecutorService latencySnapshots;
+
+    /**
+     * flow - registers the metrics of a flow and its MBean
+     * @param name - user provided flow name
+     * @return FlowMetrics
+     */
+    public static FlowMetrics flow(String name) {
+        FlowMetrics flowMetrics = new FlowMetrics(name);
+        flows.put(name, flowMetrics);
+
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = objectName(name);
+
+            if (mBeanServer.isRegistered(objectName))
+                mBeanServer.unregisterMBean(objectName);
+
+            mBeanServer.registerMBean(flowMetrics, objectName);
+        } catch (JMException e) {
+            Logger.log( TAG , "- Error registering MBean for " + name + ".\n" + e );
+        }
+
+        return flowMetrics;
+    }
+
+    /**
+     * remove - unregisters the metrics of a flow
+     * @param name
+     */
+    public static void remove(String name) {
+        flows.remove(name);
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName(name));
+        } catch (JMException e) {
+            Logger.log( TAG , "- Error unregistering MBean for " + name + ".\n" + e );
+        }
+    }
+
+    /**
+     * corpus - registers the sizes of a shared content corpus
+     * @param name - canonical path of the corpus
+     * @param corpus
+     */
+    public static void corpus(String name, Corpus corpus) {
+        corpora.put(name, corpus);
+    }
+
+    /**
+     * removeCorpus - drops the sizes of an evicted corpus
+     * @param name
+     */
+    public static void removeCorpus(String name) {
+        corpora.remove(name);
+    }
+
+    /**
+     * startHttpEndpoint - serves all flow metrics in Prometheus text format on /metrics, on the loopback address only
+     * @param port
+     */
+    public static synchronized void startHttpEndpoint(int port) {
+
+        if (httpServer != null)
+            return;
+
+        try {
+            httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            httpServer.createContext("/metrics", new HttpHandler() {
+                @Override
+                public void handle(HttpExchange exchange) throws IOException {
+                    byte[] body = toPrometheusText().getBytes(StandardCharsets.UTF_8);
+
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                    exchange.sendResponseHeaders(200, body.length);
+
+                    OutputStream os = exchange.getResponseBody();
+                    os.write(body);
+                    os.close();
+                }
+            });
+            httpServer.start();
+
+            Logger.log( TAG , "- Serving metrics on " + httpServer.getAddress() );
+        } catch (IOException e) {
+            httpServer = null;
+            Logger.log( TAG , "- Error starting metrics endpoint on port " + port + ".\n" + e );
+        }
+    }
+
+    /**
+     * stopHttpEndpoint - stops the Prometheus endpoint
+     */
+    public static synchronized void stopHttpEndpoint() {
+        if (httpServer != null) {
+            httpServer.stop(0);
+            httpServer = null;
+        }
+    }
+
+    /**
+     * startLatencySnapshots - snapshots and resets the latency histograms and rates of every flow each interval, the
+     * snapshots are logged at debug level, a flow achieving less than RATE_SHORTFALL of its target rate as a warning
+     * @param intervalSeconds
+     */
+    public static synchronized void startLatencySnapshots(long intervalSeconds) {
+
+        if (latencySnapshots != null)
+            return;
+
+        latencySnapshots = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Metrics-Latency");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        latencySnapshots.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                for (final FlowMetrics f : flows.values()) {
+                    f.snapshotLatency();
+                    f.snapshotRate();
+                    Logger.log( Logger.Level.DEBUG, TAG , () -> "- " + f.getName() + " gap " + percentiles(f.getSendGapSnapshot())
+                            + " / build " + percentiles(f.getBuildTimeSnapshot()) + " / send " + percentiles(f.getSendTimeSnapshot()) );
+
+                    double target = f.getTargetPacketsPerSecond();
+                    double achieved = f.getAchievedPacketsPerSecond();
+                    if (target > 0 && achieved < target * RATE_SHORTFALL)
+                        Logger.log( Logger.Level.WARN, TAG , String.format("- %s achieved %.0f of %.0f pps (rate scale %.2f, %d stalls, %d ENOBUFS, %d dropped)",
+                                f.getName(), achieved, target, f.getRateScale(), f.getSendStalls(), f.getSendNoBuffers(), f.getPacketsDropped()) );
+                    else
+                        Logger.log( Logger.Level.DEBUG, TAG , () -> String.format("- %s achieved %.0f of %.0f pps", f.getName(), achieved, target) );
+                }
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * stopLatencySnapshots - stops the latency snapshots
+     */
+    public static synchronized void stopLatencySnapshots() {
+        if (latencySnapshots != null) {
+            latencySnapshots.shutdownNow();
+            latencySnapshots = null;
+        }
+    }
+
+    /**
+     * toPrometheusText - renders all flow metrics in Prometheus text exposition format
+     * @return String
+     */
+    public static String toPrometheusText() {
+        StringBuilder sb = new StringBuilder();
+
+        header(sb, "packets_sent_total", "counter", "Packets sent per flow");
+        for (FlowMetrics f : flows.values())
+            sample(sb, "packets_sent_total", flowLabel(f), f.getPacketsSent());
+
+        header(sb, "bytes_sent_total", "counter", "Bytes sent per flow");
+        for (FlowMetrics f : flows.values())
+            sample(sb, "bytes_sent_total", flowLabel(f), f.getBytesSent());
+
+        header(sb, "send_errors_total", "counter", "Failed sends per flow");
+        for (FlowMetrics f : flows.values())
+            sample(sb, "send_errors_total", flowLabel(f), f.getSendErrors());
+
+        header(sb, "target_packets_per_second", "gauge", "Rate the flow was paced at, averaged over the last latency interval");
+        for (FlowMetrics f : flows.values())
+            sample(sb, "target_packets_per_second", flowLabel(f), f.getTargetPacketsPerSecond());
+
+        header(sb, "achieved_packets_per_second", "gauge", "Packets sent to at least one destination per second over the last latency interval");
+        for (FlowMetrics f : flows.values())
+            sample(sb, "achieved_packets_per_second", flowLabel(f), f.getAchievedPacketsPerSecond());
+
+        header(sb, "rate_scale", "gauge", "Fraction of the target rate an adaptive sender backed off to");
+        for (FlowMetrics f : flows.values())
+            sample(sb, "rate_scale", flowLabel(f), f.getRateScale());
+
+        header(sb, "send_stalls_total", "counter", "Send calls blocked longer than the stall threshold per flow");
+        for (FlowMetrics f : flows.values())
+            sample(sb, "send_stalls_total", flowLabel(f), f.getSendStalls());
+
+        header(sb, "send_no_buffers_total", "counter", "Sends refused for lack of kernel buffer space (ENOBUFS) per flow");
+        for (FlowMetrics f : flows.values())
+            sample(sb, "send_no_buffers_total", flowLabel(f), f.getSendNoBuffers());
+
+        header(sb, "packets_dropped_total", "counter", "Packets dropped on a full send buffer per flow and destination copy");
+        for (FlowMetrics f : flows.values())
+            sample(sb, "packets_dropped_total", flowLabel(f), f.getPacketsDropped());
+
+        header(sb, "state_packets_sent_total", "counter", "Packets sent per flow and Markov state");
+        for (FlowMetrics f : flows.values())
+            for (CommonEnums.StateStatus state : CommonEnums.StateStatus.values())
+                sample(sb, "state_packets_sent_total", stateLabel(f, state), f.getStatePacketsSent(state));
+
+        header(sb, "state_bytes_sent_total", "counter", "Bytes sent per flow and Markov state");
+        for (FlowMetrics f : flows.values())
+            for (CommonEnums.StateStatus state : CommonEnums.StateStatus.values())
+                sample(sb, "state_bytes_sent_total", stateLabel(f, state), f.getStateBytesSent(state));
+
+        header(sb, "state_seconds_total", "counter", "Time spent per flow and Markov state");
+        for (FlowMetrics f : flows.values())
+            for (CommonEnums.StateStatus state : CommonEnums.StateStatus.values())
+                sample(sb, "state_seconds_total", stateLabel(f, state), f.getStateSeconds(state));
+
+        header(sb, "socket_packets_sent_total", "counter", "Packets sent per open socket");
+        for (FlowMetrics f : flows.values())
+            for (FlowMetrics.SocketMetrics s : f.getSockets())
+                sample(sb, "socket_packets_sent_total", socketLabel(f, s), s.getPacketsSent());
+
+        header(sb, "socket_bytes_sent_total", "counter", "Bytes sent per open socket");
+        for (FlowMetrics f : flows.values())
+            for (FlowMetrics.SocketMetrics s : f.getSockets())
+                sample(sb, "socket_bytes_sent_total", socketLabel(f, s), s.getBytesSent());
+
+        header(sb, "socket_send_errors_total", "counter", "Failed sends per open socket");
+        for (FlowMetrics f : flows.values())
+            for (FlowMetrics.SocketMetrics s : f.getSockets())
+                sample(sb, "socket_send_errors_total", socketLabel(f, s), s.getSendErrors());
+
+        header(sb, "burst_size_average", "gauge", "Average achieved burst size per flow");
+        for (FlowMetrics f : flows.values())
+            sample(sb, "burst_size_average", flowLabel(f), f.getAverageBurstSize());
+
+        header(sb, "burst_spacing_seconds_average", "gauge", "Average spacing between burst starts per flow");
+        for (FlowMetrics f : flows.values())
+            sample(sb, "burst_spacing_seconds_average", flowLabel(f), f.getAverageBurstSpacingMillis() / 1e3);
+
+        header(sb, "pacing_jitter_seconds_average", "gauge", "Average lateness of bursts relative to their pacer deadline");
+        for (FlowMetrics f : flows.values())
+            sample(sb, "pacing_jitter_seconds_average", flowLabel(f), f.getAveragePacingJitterMicros() / 1e6);
+
+        header(sb, "pacing_jitter_seconds_max", "gauge", "Maximum lateness of bursts relative to their pacer deadline");
+        for (FlowMetrics f : flows.values())
+            sample(sb, "pacing_jitter_seconds_max", flowLabel(f), f.getMaxPacingJitterMicros() / 1e6);
+
+        header(sb, "ring_fill", "gauge", "Packets ready in the flow's packet ring when the last one was taken");
+        for (FlowMetrics f : flows.values())
+            if (f.getRingCapacity() > 0)
+                sample(sb, "ring_fill", flowLabel(f), f.getRingFill());
+
+        header(sb, "ring_high_water", "gauge", "Most packets ever ready in the flow's packet ring");
+        for (FlowMetrics f : flows.values())
+            if (f.getRingCapacity() > 0)
+                sample(sb, "ring_high_water", flowLabel(f), f.getRingHighWater());
+
+        header(sb, "ring_low_water", "gauge", "Fewest packets ever ready in the flow's packet ring, 0 means the sender caught up with the builder");
+        for (FlowMetrics f : flows.values())
+            if (f.getRingCapacity() > 0)
+                sample(sb, "ring_low_water", flowLabel(f), f.getRingLowWater());
+
+        header(sb, "ring_underruns_total", "counter", "Sends that found the flow's packet ring empty");
+        for (FlowMetrics f : flows.values())
+            if (f.getRingCapacity() > 0)
+                sample(sb, "ring_underruns_total", flowLabel(f), f.getRingUnderruns());
+
+        header(sb, "content_mapped_bytes", "gauge", "Size of each shared content corpus");
+        for (Map.Entry<String, Corpus> c : corpora.entrySet())
+            sample(sb, "content_mapped_bytes", corpusLabel(c.getKey()), c.getValue().getMappedBytes());
+
+        header(sb, "content_resident_bytes", "gauge", "Bytes of each shared content corpus resident in memory");
+        for (Map.Entry<String, Corpus> c : corpora.entrySet())
+            sample(sb, "content_resident_bytes", corpusLabel(c.getKey()), c.getValue().getResidentBytes());
+
+        header(sb, "content_references", "gauge", "Flows sharing each content corpus");
+        for (Map.Entry<String, Corpus> c : corpora.entrySet())
+            sample(sb, "content_references", corpusLabel(c.getKey()), c.getValue().getReferences());
+
+        latency(sb, "send_gap_seconds", "Time between burst starts per flow over the last latency interval", FlowMetrics::getSendGapSnapshot);
+        latency(sb, "build_time_seconds", "Time to build a packet per flow over the last latency interval", FlowMetrics::getBuildTimeSnapshot);
+        latency(sb, "send_time_seconds", "Time of a send call per flow over the last latency interval", FlowMetrics::getSendTimeSnapshot);
+
+        return sb.toString();
+    }
+
+    /**
+     * latency - renders a latency snapshot of every flow as a summary of its p50, p99, p99.9, sum and count and a
+     * gauge of its max
+     * @param sb
+     * @param metric
+     * @param help
+     * @param snapshot
+     */
+    private static void latency(StringBuilder sb, String metric, String help, Function<FlowMetrics, LatencyHistogram.Snapshot> snapshot) {
+
+        header(sb, metric, "summary", help);
+        for (FlowMetrics f : flows.values()) {
+            LatencyHistogram.Snapshot s = snapshot.apply(f);
+            sample(sb, metric, flowLabel(f) + ",quantile=\"0.5\"", s.getValueAtPercentile(50) / 1e9);
+            sample(sb, metric, flowLabel(f) + ",quantile=\"0.99\"", s.getValueAtPercentile(99) / 1e9);
+            sample(sb, metric, flowLabel(f) + ",quantile=\"0.999\"", s.getValueAtPercentile(99.9) / 1e9);
+            sample(sb, metric + "_sum", flowLabel(f), s.getSum() / 1e9);
+            sample(sb, metric + "_count", flowLabel(f), s.getCount());
+        }
+
+        header(sb, metric + "_max", "gauge", "Maximum of " + metric + " over the last latency interval");
+        for (FlowMetrics f : flows.values())
+            sample(sb, metric + "_max", flowLabel(f), snapshot.apply(f).getMax() / 1e9);
+    }
+
+    /**
+     * percentiles - p50, p99, p99.9 and max of a snapshot in microseconds, for logging
+     * @param s
+     * @return String
+     */
+    private static String percentiles(LatencyHistogram.Snapshot s) {
+        return String.format("p50 %.1f p99 %.1f p99.9 %.1f max %.1f us", s.getValueAtPercentile(50) / 1e3,
+                s.getValueAtPercentile(99) / 1e3, s.getValueAtPercentile(99.9) / 1e3, s.getMax() / 1e3);
+    }
+
+    private static void header(StringBuilder sb, String metric, String type, String help) {
+        sb.append("# HELP ").append(PREFIX).append(metric).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(PREFIX).append(metric).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder sb, String metric, String labels, double value) {
+        sb.append(PREFIX).append(metric).append('{').append(labels).append("} ").append(value).append('\n');
+    }
+
+    private static void sample(StringBuilder sb, String metric, String labels, long value) {
+        sb.append(PREFIX).append(metric).append('{').append(labels).append("} ").append(value).append('\n');
+    }
+
+    private static String flowLabel(FlowMetrics f) {
+        return "flow=\"" + escape(f.getName()) + "\"";
+    }
+
+    private static String stateLabel(FlowMetrics f, CommonEnums.StateStatus state) {
+        return flowLabel(f) + ",state=\"" + state + "\"";
+    }
+
+    private static String socketLabel(FlowMetrics f, FlowMetrics.SocketMetrics s) {
+        return flowLabel(f) + ",socket=\"" + escape(s.getName()) + "\"";
+    }
+
+    private static String corpusLabel(String name) {
+        return "corpus=\"" + escape(name) + "\"";
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static ObjectName objectName(String name) throws JMException {
+        return new ObjectName("vt.wurrego:type=Flow,name=" + ObjectName.quote(name));
+    }
+
+    /**
+     * Sizes of a shared content corpus, read on every scrape
+     */
+    public interface Corpus {
+        long getMappedBytes();
+
+        long getResidentBytes();
+
+        int getReferences();
+    }
+}
@@ -0,0 +1,84 @@
+package vt.wurrego.utils;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * High-resolution pacer scheduling sends against absolute System.nanoTime deadlines
+ *
+ * The caller waits for the current deadline, sends, then advances the deadline by the send interval. Because the
+ * deadlines are absolute, wake-up and send latencies do not accumulate into rate error. Waiting parks the thread
+ * until spinNanos before the deadline and spin-waits the rest, so spinNanos trades CPU for accuracy: 0 only parks
+ * (cheapest, accurate to the OS timer slack), a few tens of microseconds gives sub-microsecond spacing at the cost
+ * of a busy core near every deadline.
+ *
+ * Not thread-safe, a pacer belongs to a single sender.
+ *
+ * Created by wurrego on 5/7/17.
+ */
+public class Pacer {
+
+    private final long spinNanos;
+    private long deadline;
+
+    /**
+     * Pacer - creates a pacer whose first deadline is now
+     * @param spinNanos - time before each deadline spent spin-waiting instead of parking
+     */
+    public Pacer(long spinNanos) {
+        this.spinNanos = Math.max(0, spinNanos);
+        this.deadline = System.nanoTime();
+    }
+
+    /**
+     * reset - sets the next deadline
+     * @param deadline - System.nanoTime based
+     */
+    public void reset(long deadline) {
+        this.deadline = deadline;
+    }
+
+    public long getDeadline() {
+        return deadline;
+    }
+
+    public long getSpinNanos() {
+        return spinNanos;
+    }
+
+    /**
+     * await - waits for the current deadline, parking first and spinning for the last spinNanos, an unpark or
+     * interrupt while parked returns early so the caller can recheck its state before waiting again
+     * @return long - lateness, how far past the deadline the caller was released in nanoseconds, -1 when woken early
+     */
+    public long await() {
+        long now = System.nanoTime();
+
+        if (deadline - now > spinNanos) {
+            LockSupport.parkNanos(deadline - now - spinNanos);
+            now = System.nanoTime();
+
+            if (deadline - now > spinNanos)
+                return -1;
+        }
+
+        while (deadline - now > 0) {
+            Thread.onSpinWait();
+            now = System.nanoTime();
+        }
+
+        return now - deadline;
+    }
+
+    /**
+     * advance - moves the deadline on by intervalNanos, a sender that fell behind by more than an interval restarts
+     * from now instead of catching up with a burst
+     * @param intervalNanos
+     */
+    public void advance(long intervalNanos) {
+        deadline += intervalNanos;
+
+        long now = System.nanoTime();
+        if (now - deadline > intervalNanos)
+            deadline = now;
+    }
+}
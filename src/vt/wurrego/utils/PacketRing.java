@@ -0,0 +1,156 @@
+package vt.wurrego.utils;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+
+/**
+ * Single-producer/single-consumer ring of ready-to-send packets in off-heap memory
+ *
+ * All slots are carved out of one direct buffer up front, so neither side allocates. The producer claims a free slot,
+ * writes a packet into it and publishes it, the consumer peeks the oldest packet, sends it and releases the slot.
+ * Every packet carries a long tag from producer to consumer. Head and tail are published with release/acquire
+ * ordering and padded onto their own cache lines, each side caches the other's last seen position so the shared
+ * counters are only read when the ring looks full or empty.
+ *
+ * Exactly one thread may produce and one thread may consume.
+ *
+ * Created by wurrego on 5/12/17.
+ */
+public class PacketRing {
+
+    private static final VarHandle HEAD;
+    private static final VarHandle TAIL;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            HEAD = lookup.findVarHandle(PacketRing.class, "head", long.class);
+            TAIL = lookup.findVarHandle(PacketRing.class, "tail", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final ByteBuffer[] slots;
+    private final int[] lengths;
+    private final long[] tags;
+    private final int mask;
+    private final int slotSize;
+
+    // consumer side
+    private long p00, p01, p02, p03, p04, p05, p06;
+    private volatile long head;
+    private long cachedTail;
+
+    // producer side
+    private long p10, p11, p12, p13, p14, p15, p16;
+    private volatile long tail;
+    private long cachedHead;
+    private long p20, p21, p22, p23, p24, p25, p26;
+
+    /**
+     * PacketRing - allocates the ring
+     * @param capacity - number of packets, rounded up to a power of two
+     * @param slotSize - maximum packet length
+     */
+    public PacketRing(int capacity, int slotSize) {
+
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+
+        this.slots = new ByteBuffer[size];
+        this.lengths = new int[size];
+        this.tags = new long[size];
+        this.mask = size - 1;
+        this.slotSize = slotSize;
+
+        ByteBuffer memory = ByteBuffer.allocateDirect(size * slotSize);
+
+        for (int i = 0; i < size; i++)
+            slots[i] = memory.slice(i * slotSize, slotSize);
+    }
+
+    /**
+     * claim - producer, next free slot cleared to slotSize bytes, the slot stays invisible until published
+     * @return ByteBuffer - null when the ring is full
+     */
+    public ByteBuffer claim() {
+        long t = tail;
+
+        if (t - cachedHead > mask) {
+            cachedHead = (long) HEAD.getAcquire(this);
+
+            if (t - cachedHead > mask)
+                return null;
+        }
+
+        ByteBuffer slot = slots[(int) t & mask];
+        slot.clear();
+        return slot;
+    }
+
+    /**
+     * publish - producer, makes the claimed slot visible to the consumer
+     * @param length - packet length written into the slot
+     * @param tag - handed to the consumer with the packet
+     */
+    public void publish(int length, long tag) {
+        long t = tail;
+
+        lengths[(int) t & mask] = length;
+        tags[(int) t & mask] = tag;
+        TAIL.setRelease(this, t + 1);
+    }
+
+    /**
+     * peek - consumer, oldest published packet flipped to its length, it stays in the ring until released
+     * @return ByteBuffer - null when the ring is empty
+     */
+    public ByteBuffer peek() {
+        long h = head;
+
+        if (h >= cachedTail) {
+            cachedTail = (long) TAIL.getAcquire(this);
+
+            if (h >= cachedTail)
+                return null;
+        }
+
+        int index = (int) h & mask;
+        ByteBuffer slot = slots[index];
+        slot.limit(lengths[index]);
+        slot.position(0);
+        return slot;
+    }
+
+    /**
+     * peekTag - consumer, tag of the peeked packet
+     * @return long
+     */
+    public long peekTag() {
+        return tags[(int) head & mask];
+    }
+
+    /**
+     * release - consumer, hands the peeked slot back to the producer
+     */
+    public void release() {
+        HEAD.setRelease(this, head + 1);
+    }
+
+    /**
+     * size - number of published packets not yet released, exact from the consumer, approximate elsewhere
+     * @return int
+     */
+    public int size() {
+        return (int) ((long) TAIL.getAcquire(this) - (long) HEAD.getAcquire(this));
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    public int getSlotSize() {
+        return slotSize;
+    }
+}
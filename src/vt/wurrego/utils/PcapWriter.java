@@ -0,0 +1,131 @@
+package vt.wurrego.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+
+/**
+ * Writes packets into a nanosecond resolution PCAP file
+ *
+ * Records are gathered in a large direct buffer and written to the FileChannel a buffer at a time, so writing runs at
+ * disk speed. Timestamps are System.nanoTime based and converted to epoch time against the clocks sampled on open.
+ *
+ * Not thread-safe, a writer belongs to a single sender.
+ *
+ * Created by wurrego on 5/10/17.
+ */
+public class PcapWriter {
+
+    /**
+     * class parameters
+     */
+    public static final int MAGIC_NANOSECONDS = 0xA1B23C4D;
+    public static final int LINKTYPE_RAW = 101;
+    public static final int LINKTYPE_USER0 = 147;
+    public static final int SNAPLEN = 65535;
+
+    private static final int GLOBAL_HEADER_SIZE = 24;
+    private static final int RECORD_HEADER_SIZE = 16;
+    private static final int DEFAULT_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    private final String fileName;
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final long epochOffsetNanos;
+    private long recordsWritten;
+
+    public PcapWriter(String fileName, int linkType) throws IOException {
+        this(fileName, linkType, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * PcapWriter - creates or truncates fileName and writes the PCAP global header
+     * @param fileName
+     * @param linkType - LINKTYPE_RAW for packets starting with an IPv4 header
+     * @param bufferSize - bytes gathered before each write to the file
+     * @throws IOException
+     */
+    public PcapWriter(String fileName, int linkType, int bufferSize) throws IOException {
+
+        this.fileName = fileName;
+        this.channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.buffer = ByteBuffer.allocateDirect(Math.max(bufferSize, GLOBAL_HEADER_SIZE + RECORD_HEADER_SIZE + SNAPLEN)).order(ByteOrder.nativeOrder());
+
+        Instant now = Instant.now();
+        this.epochOffsetNanos = now.getEpochSecond() * 1000000000L + now.getNano() - System.nanoTime();
+
+        // global header, readers detect the byte order from the magic number
+        buffer.putInt(MAGIC_NANOSECONDS);
+        buffer.putShort((short) 2);
+        buffer.putShort((short) 4);
+        buffer.putInt(0);
+        buffer.putInt(0);
+        buffer.putInt(SNAPLEN);
+        buffer.putInt(linkType);
+    }
+
+    /**
+     * write - appends packet as one record, packet is consumed from its position to its limit
+     * @param packet
+     * @param timestampNanos - System.nanoTime based
+     * @throws IOException
+     */
+    public void write(ByteBuffer packet, long timestampNanos) throws IOException {
+
+        int originalLength = packet.remaining();
+        int capturedLength = Math.min(originalLength, SNAPLEN);
+
+        if (buffer.remaining() < RECORD_HEADER_SIZE + capturedLength)
+            flush();
+
+        long epochNanos = epochOffsetNanos + timestampNanos;
+
+        buffer.putInt((int) (epochNanos / 1000000000L));
+        buffer.putInt((int) (epochNanos % 1000000000L));
+        buffer.putInt(capturedLength);
+        buffer.putInt(originalLength);
+
+        int limit = packet.limit();
+        packet.limit(packet.position() + capturedLength);
+        buffer.put(packet);
+        packet.limit(limit);
+
+        recordsWritten = recordsWritten + 1;
+    }
+
+    /**
+     * flush - writes the gathered records to the file
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+    /**
+     * close - flushes the remaining records and closes the file
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public long getRecordsWritten() {
+        return recordsWritten;
+    }
+}
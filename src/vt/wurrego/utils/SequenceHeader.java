@@ -0,0 +1,229 @@
+package vt.wurrego.utils;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.zip.CRC32;
+
+/**
+ * Compact payload header for measuring loss, duplication, reordering and one-way latency
+ *
+ * The header leads the payload, 32 bytes big-endian:
+ *
+ *      magic (4 bytes)         - "PSEQ"
+ *      flow id (4 bytes)
+ *      run id (4 bytes)        - random per run of the flow, a receiver tells a restarted flow by it
+ *      reserved (4 bytes)      - 0
+ *      sequence (8 bytes)      - per flow, from 0, one per packet whatever the number of destinations
+ *      timestamp (8 bytes)     - send time, nanoseconds since the epoch
+ *
+ * Magic, flow id and run id are written when the packet is built, sequence and timestamp only when it is sent so
+ * packets built ahead in a ring carry their real send time. When the packet has a custom UDP header its checksum is
+ * updated incrementally for the stamped words (RFC 1624), the rest of the packet is not read again.
+ *
+ * Created by wurrego on 5/14/17.
+ */
+public class SequenceHeader {
+
+    /**
+     * class parameters
+     */
+    public static final int SIZE = 32;
+    public static final int MAGIC = 0x50534551;
+
+    private static final int FLOW_ID_POS = 4;
+    private static final int RUN_ID_POS = 8;
+    private static final int RESERVED_POS = 12;
+    private static final int SEQUENCE_POS = 16;
+    private static final int TIMESTAMP_POS = 24;
+    private static final int UDP_CHECKSUM_POS = IPUtils.IP_HEADER_SIZE + 6;
+
+    private static final VarHandle INT_BE = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle LONG_BE = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    // wall clock at System.nanoTime() == 0, timestamps keep the monotonic clock's resolution
+    private static final long EPOCH_OFFSET_NANOS;
+
+    static {
+        Instant now = Instant.now();
+        EPOCH_OFFSET_NANOS = now.getEpochSecond() * 1000000000L + now.getNano() - System.nanoTime();
+    }
+
+    /**
+     * flowId - id carried in the header, the configured one or else the CRC32 of the flow name
+     * @param configuredId - 0 when not configured
+     * @param name
+     * @return int
+     */
+    public static int flowId(int configuredId, String name) {
+
+        if (configuredId != 0)
+            return configuredId;
+
+        CRC32 crc = new CRC32();
+        crc.update(name.getBytes(StandardCharsets.UTF_8));
+        return (int) crc.getValue();
+    }
+
+    /**
+     * epochNanos - converts a System.nanoTime() value to nanoseconds since the epoch
+     * @param nanoTime
+     * @return long
+     */
+    public static long epochNanos(long nanoTime) {
+        return EPOCH_OFFSET_NANOS + nanoTime;
+    }
+
+    /**
+     * nowEpochNanos - current time in nanoseconds since the epoch
+     * @return long
+     */
+    public static long nowEpochNanos() {
+        return EPOCH_OFFSET_NANOS + System.nanoTime();
+    }
+
+    /**
+     * prepare - writes the header with sequence and timestamp zeroed at data[index]
+     * @param data
+     * @param index
+     * @param flowId
+     * @param runId
+     */
+    public static void prepare(byte[] data, int index, int flowId, int runId) {
+        INT_BE.set(data, index, MAGIC);
+        INT_BE.set(data, index + FLOW_ID_POS, flowId);
+        INT_BE.set(data, index + RUN_ID_POS, runId);
+        INT_BE.set(data, index + RESERVED_POS, 0);
+        LONG_BE.set(data, index + SEQUENCE_POS, 0L);
+        LONG_BE.set(data, index + TIMESTAMP_POS, 0L);
+    }
+
+    /**
+     * prepare - writes the header with sequence and timestamp zeroed at data[index], absolute writes
+     * @param data
+     * @param index
+     * @param flowId
+     * @param runId
+     */
+    public static void prepare(ByteBuffer data, int index, int flowId, int runId) {
+        putInt(data, index, MAGIC);
+        putInt(data, index + FLOW_ID_POS, flowId);
+        putInt(data, index + RUN_ID_POS, runId);
+        putInt(data, index + RESERVED_POS, 0);
+        putLong(data, index + SEQUENCE_POS, 0L);
+        putLong(data, index + TIMESTAMP_POS, 0L);
+    }
+
+    /**
+     * stamp - writes sequence and timestamp into a prepared header
+     * @param packet
+     * @param index - start of the header
+     * @param sequence
+     * @param timestamp - nanoseconds since the epoch
+     * @param udpHeader - packet starts with a custom IPv4/UDP header whose checksum is updated
+     */
+    public static void stamp(byte[] packet, int index, long sequence, long timestamp, boolean udpHeader) {
+        LONG_BE.set(packet, index + SEQUENCE_POS, sequence);
+        LONG_BE.set(packet, index + TIMESTAMP_POS, timestamp);
+
+        if (udpHeader) {
+            int checksum = ((packet[UDP_CHECKSUM_POS] & 0xFF) << 8) | (packet[UDP_CHECKSUM_POS + 1] & 0xFF);
+            checksum = updateChecksum(checksum, sequence, timestamp);
+            packet[UDP_CHECKSUM_POS] = (byte) (checksum >>> 8);
+            packet[UDP_CHECKSUM_POS + 1] = (byte) checksum;
+        }
+    }
+
+    /**
+     * stamp - writes sequence and timestamp into a prepared header, absolute writes
+     * @param packet
+     * @param index - start of the header
+     * @param sequence
+     * @param timestamp - nanoseconds since the epoch
+     * @param udpHeader - packet starts with a custom IPv4/UDP header whose checksum is updated
+     */
+    public static void stamp(ByteBuffer packet, int index, long sequence, long timestamp, boolean udpHeader) {
+        putLong(packet, index + SEQUENCE_POS, sequence);
+        putLong(packet, index + TIMESTAMP_POS, timestamp);
+
+        if (udpHeader) {
+            int checksum = ((packet.get(UDP_CHECKSUM_POS) & 0xFF) << 8) | (packet.get(UDP_CHECKSUM_POS + 1) & 0xFF);
+            checksum = updateChecksum(checksum, sequence, timestamp);
+            packet.put(UDP_CHECKSUM_POS, (byte) (checksum >>> 8));
+            packet.put(UDP_CHECKSUM_POS + 1, (byte) checksum);
+        }
+    }
+
+    /**
+     * updateChecksum - folds words that replaced zeros into a UDP checksum, HC' = ~(~HC + m'), a checksum
+     * computing to 0 is sent as 0xFFFF
+     * @param checksum
+     * @param sequence
+     * @param timestamp
+     * @return int
+     */
+    static int updateChecksum(int checksum, long sequence, long timestamp) {
+        long sum = (~checksum & 0xFFFF)
+                + (sequence >>> 32) + (sequence & 0xFFFFFFFFL)
+                + (timestamp >>> 32) + (timestamp & 0xFFFFFFFFL);
+
+        int updated = ~IPUtils.IPHeaderChecksum.fold(sum) & 0xFFFF;
+        return (updated == 0) ? 0xFFFF : updated;
+    }
+
+    /**
+     * find - start of the header in a received datagram, either leading it or behind a custom IPv4/UDP header
+     * @param data - datagram from position 0 to limit, absolute reads
+     * @return int - -1 when the datagram carries no header
+     */
+    public static int find(ByteBuffer data) {
+
+        int length = data.limit();
+
+        if (length >= SIZE && getInt(data, 0) == MAGIC)
+            return 0;
+
+        int inner = IPUtils.IP_HEADER_SIZE + IPUtils.UDP_HEADER_SIZE;
+        if (length >= inner + SIZE && getInt(data, inner) == MAGIC)
+            return inner;
+
+        return -1;
+    }
+
+    public static int getFlowId(ByteBuffer data, int index) {
+        return getInt(data, index + FLOW_ID_POS);
+    }
+
+    public static int getRunId(ByteBuffer data, int index) {
+        return getInt(data, index + RUN_ID_POS);
+    }
+
+    public static long getSequence(ByteBuffer data, int index) {
+        return getLong(data, index + SEQUENCE_POS);
+    }
+
+    public static long getTimestamp(ByteBuffer data, int index) {
+        return getLong(data, index + TIMESTAMP_POS);
+    }
+
+    private static void putInt(ByteBuffer data, int index, int value) {
+        data.putInt(index, (data.order() == ByteOrder.BIG_ENDIAN) ? value : Integer.reverseBytes(value));
+    }
+
+    private static void putLong(ByteBuffer data, int index, long value) {
+        data.putLong(index, (data.order() == ByteOrder.BIG_ENDIAN) ? value : Long.reverseBytes(value));
+    }
+
+    private static int getInt(ByteBuffer data, int index) {
+        int value = data.getInt(index);
+        return (data.order() == ByteOrder.BIG_ENDIAN) ? value : Integer.reverseBytes(value);
+    }
+
+    private static long getLong(ByteBuffer data, int index) {
+        long value = data.getLong(index);
+        return (data.order() == ByteOrder.BIG_ENDIAN) ? value : Long.reverseBytes(value);
+    }
+}
@@ -0,0 +1,72 @@
+package vt.wurrego.utils;
+
+import java.lang.reflect.Method;
+
+/**
+ * Class for creating platform or virtual threads
+ *
+ * Virtual threads are looked up reflectively (Thread.ofVirtual(), Java 21+) so the sources still build and run on
+ * older JVMs, where a platform thread is created instead.
+ *
+ * Created by wurrego on 5/8/17.
+ */
+public class Threads {
+
+    private static final String TAG = " [" + Threads.class.getSimpleName() + "] ";
+
+    private static final Method ofVirtual;
+    private static final Method builderName;
+    private static final Method builderUnstarted;
+    private static boolean fallbackLogged = false;
+
+    static {
+        Method ofVirtualMethod = null;
+        Method nameMethod = null;
+        Method unstartedMethod = null;
+
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            ofVirtualMethod = Thread.class.getMethod("ofVirtual");
+            nameMethod = builderClass.getMethod("name", String.class);
+            unstartedMethod = builderClass.getMethod("unstarted", Runnable.class);
+        } catch (ReflectiveOperationException e) {
+            ofVirtualMethod = null;
+        }
+
+        ofVirtual = ofVirtualMethod;
+        builderName = nameMethod;
+        builderUnstarted = unstartedMethod;
+    }
+
+    /**
+     * virtualThreadsSupported - true when the running JVM provides virtual threads
+     * @return boolean
+     */
+    public static boolean virtualThreadsSupported() {
+        return ofVirtual != null;
+    }
+
+    /**
+     * newThread - creates an unstarted thread, virtual when requested and supported
+     * @param task
+     * @param name
+     * @param virtual
+     * @return Thread
+     */
+    public static Thread newThread(Runnable task, String name, boolean virtual) {
+
+        if (virtual && ofVirtual != null) {
+            try {
+                Object builder = builderName.invoke(ofVirtual.invoke(null), name);
+                return (Thread) builderUnstarted.invoke(builder, task);
+            } catch (ReflectiveOperationException e) {
+                Logger.log( TAG , "- Error creating virtual thread, falling back to platform thread.\n" + e );
+            }
+        } else if (virtual && !fallbackLogged) {
+            fallbackLogged = true;
+            Logger.log( TAG , "- Virtual threads not supported by this JVM, using platform threads." );
+        }
+
+        return new Thread(task, name);
+    }
+}